@@ -1,53 +1,108 @@
 package com.mbeddr.modelroot.neo4j;
 
+import com.mbeddr.persistence.Neo4JModelPersistence;
+import com.mbeddr.persistence.neo4j.Neo4JPersistence;
+import com.mbeddr.persistence.neo4j.Neo4JSettings;
 import jetbrains.mps.extapi.persistence.ModelRootBase;
+import jetbrains.mps.smodel.SModelHeader;
 import org.jetbrains.mps.openapi.model.SModel;
 import org.jetbrains.mps.openapi.model.SModelId;
 import org.jetbrains.mps.openapi.module.SModule;
 import org.jetbrains.mps.openapi.persistence.Memento;
-import org.jetbrains.mps.openapi.persistence.ModelRoot;
+import org.jetbrains.mps.openapi.persistence.ModelFactory;
+import org.jetbrains.mps.openapi.persistence.PersistenceFacade;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Created by kdummann on 25/10/2016.
  */
 public class Neo4JModelRoot extends ModelRootBase {
+    private static final String TYPE = "neo4j";
+    private static final String URL = "url";
+
+    private Neo4JSettings mySettings = Neo4JSettings.fromSystemProperties();
+
+    /**
+     * The models the database holds for the module are found with a single query, their content is read once they
+     * are used. Models the module already has, e.g. through their stub files, are left out.
+     */
     @Override
     public Iterable<SModel> loadModels() {
-        return null;
+        SModule module = getModule();
+        if (module == null) {
+            return Collections.emptyList();
+        }
+        Neo4JModelPersistence factory = getModelFactory();
+        List<SModel> result = new ArrayList<>();
+        for (SModelHeader header : Neo4JPersistence.readHeaders(factory.getExecutor(mySettings), module.getModuleReference().getModuleId())) {
+            if (module.getModel(header.getModelReference().getModelId()) == null) {
+                result.add(factory.createModel(mySettings, header));
+            }
+        }
+        return result;
     }
 
     @Override
     public String getType() {
-        return null;
+        return TYPE;
     }
 
     @Override
     public String getPresentation() {
-        return null;
+        return "Neo4j " + mySettings.getUrl();
     }
 
     @Override
     public SModel getModel(SModelId id) {
-        return null;
+        SModule module = getModule();
+        if (module != null) {
+            SModel model = module.getModel(id);
+            if (model != null) {
+                return model;
+            }
+        }
+        Neo4JModelPersistence factory = getModelFactory();
+        SModelHeader header = Neo4JPersistence.readHeader(factory.getExecutor(mySettings), id);
+        return header == null ? null : factory.createModel(mySettings, header);
     }
 
     @Override
     public boolean canCreateModel(String modelName) {
-        return false;
+        return getModule() != null;
     }
 
     @Override
     public SModel createModel(String modelName) {
-        return null;
+        if (!canCreateModel(modelName)) {
+            return null;
+        }
+        SModelHeader header = new SModelHeader();
+        header.setModelReference(PersistenceFacade.getInstance().createModelReference(getModule().getModuleReference(),
+                jetbrains.mps.smodel.SModelId.generate(), modelName));
+        SModel model = getModelFactory().createModel(mySettings, header);
+        register(model);
+        return model;
     }
 
     @Override
     public void save(Memento memento) {
-
+        memento.put(URL, mySettings.getUrl());
     }
 
     @Override
     public void load(Memento memento) {
+        String url = memento.get(URL);
+        mySettings = url == null ? Neo4JSettings.fromSystemProperties() : Neo4JSettings.fromSystemProperties().withUrl(url);
+    }
 
+    private static Neo4JModelPersistence getModelFactory() {
+        ModelFactory factory = PersistenceFacade.getInstance().getModelFactory(TYPE);
+        if (!(factory instanceof Neo4JModelPersistence)) {
+            throw new IllegalStateException("Neo4j persistence is not registered");
+        }
+        return (Neo4JModelPersistence) factory;
     }
 }
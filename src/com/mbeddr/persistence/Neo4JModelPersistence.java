@@ -16,15 +16,21 @@
 package com.mbeddr.persistence;
 
 import com.intellij.openapi.components.ApplicationComponent;
-import jetbrains.mps.extapi.model.GeneratableSModel;
 import jetbrains.mps.extapi.model.SModelBase;
 import jetbrains.mps.extapi.model.SModelData;
-import jetbrains.mps.generator.ModelDigestUtil;
 import jetbrains.mps.logging.Logger;
 import jetbrains.mps.persistence.*;
 import jetbrains.mps.persistence.MetaModelInfoProvider.RegularMetaModelInfo;
 import jetbrains.mps.persistence.MetaModelInfoProvider.StuffedMetaModelInfo;
+import com.mbeddr.persistence.neo4j.BoltCypherExecutor;
+import com.mbeddr.persistence.neo4j.MetaRegistry;
+import com.mbeddr.persistence.neo4j.ModelChangeTracker;
+import com.mbeddr.persistence.neo4j.Neo4JDataSource;
 import com.mbeddr.persistence.neo4j.Neo4JPersistence;
+import com.mbeddr.persistence.neo4j.Neo4JSettings;
+import com.mbeddr.persistence.neo4j.NodeUtils;
+import com.mbeddr.persistence.neo4j.SavePipeline;
+import com.mbeddr.persistence.neo4j.SchemaManager;
 import jetbrains.mps.project.MPSExtentions;
 import jetbrains.mps.smodel.DefaultSModelDescriptor;
 import jetbrains.mps.smodel.SModelHeader;
@@ -34,6 +40,7 @@ import jetbrains.mps.smodel.persistence.def.ModelReadException;
 import org.apache.log4j.LogManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.mps.openapi.model.SModel;
+import org.jetbrains.mps.openapi.model.SModelReference;
 import org.jetbrains.mps.openapi.persistence.DataSource;
 import org.jetbrains.mps.openapi.persistence.ModelFactory;
 import org.jetbrains.mps.openapi.persistence.PersistenceFacade;
@@ -43,6 +50,8 @@ import org.jetbrains.mps.openapi.persistence.UnsupportedDataSourceException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * evgeny, 11/20/12
@@ -51,6 +60,10 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
   private static final String MODEL_NEO4J = "neo4j";
   private static final Logger LOG = Logger.wrap(LogManager.getLogger(Neo4JModelPersistence.class));
 
+  private final Map<String, BoltCypherExecutor> myExecutors = new ConcurrentHashMap<>();
+  private final Map<String, SavePipeline> myPipelines = new ConcurrentHashMap<>();
+  private Neo4JSettings mySettings = Neo4JSettings.fromSystemProperties();
+
   @NotNull
   @Override
   public SModel load(@NotNull DataSource dataSource, @NotNull Map<String, String> options) throws IOException {
@@ -63,7 +76,8 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
     StreamDataSource source = (StreamDataSource) dataSource;
     SModelHeader header;
     try {
-      header = Neo4JPersistence.readHeader(source);
+      // the stub only has the reference, the rest of the header is on the SModel node
+      header = Neo4JPersistence.readHeader(getExecutor(), source);
     } catch (ModelReadException e) {
       if (e.getCause() instanceof IOException) {
         throw (IOException) e.getCause();
@@ -73,7 +87,7 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
     if (Boolean.parseBoolean(options.get(MetaModelInfoProvider.OPTION_KEEP_READ_METAINFO))) {
       header.setMetaInfoProvider(new StuffedMetaModelInfo(new RegularMetaModelInfo(header.getModelReference())));
     }
-    return new DefaultSModelDescriptor(new Neo4JFacility(this, source), header);
+    return createDescriptor(new Neo4JFacility(this, source), header);
   }
 
   @NotNull
@@ -97,7 +111,22 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
 
     final SModelHeader header = new SModelHeader();
     header.setModelReference(PersistenceFacade.getInstance().createModelReference(null, jetbrains.mps.smodel.SModelId.generate(), modelName));
-    return new DefaultSModelDescriptor(new Neo4JFacility(this, source), header);
+    return createDescriptor(new Neo4JFacility(this, source), header);
+  }
+
+  /**
+   * Descriptor of a model that is known by its SModel node only, nothing but the header is read until the model is used.
+   */
+  @NotNull
+  public SModel createModel(@NotNull Neo4JSettings settings, @NotNull SModelHeader header) {
+    Neo4JDataSource source = new Neo4JDataSource(settings, header.getModelReference().getModelId());
+    return createDescriptor(new Neo4JFacility(this, source), header);
+  }
+
+  private static SModel createDescriptor(Neo4JFacility facility, SModelHeader header) {
+    DefaultSModelDescriptor descriptor = new DefaultSModelDescriptor(facility, header);
+    descriptor.addChangeListener(facility.getChangeTracker());
+    return descriptor;
   }
 
   @Override
@@ -120,7 +149,7 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
     if (!(dataSource instanceof StreamDataSource)) {
       throw new UnsupportedDataSourceException(dataSource);
     }
-    Neo4JPersistence.writeModel(((SModelBase) model).getSModel(), (StreamDataSource) dataSource);
+    reportFailure(Neo4JPersistence.writeModel(getSavePipeline(), ((SModelBase) model).getSModel(), (StreamDataSource) dataSource), model.getReference());
   }
 
   @Override
@@ -140,21 +169,19 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
 
   @Override
   public void index(@NotNull InputStream input, @NotNull Callback callback) throws IOException {
-    Neo4JPersistence.index(input, callback);
+    Neo4JPersistence.index(getSavePipeline(), input, callback);
   }
 
-  public static Map<String, String> getDigestMap(@NotNull StreamDataSource source) {
+  /**
+   * Digests stored with the model in the database, the model is not loaded, see
+   * {@link Neo4JPersistence#readDigestMap(SavePipeline, org.jetbrains.mps.openapi.model.SModelId)}
+   */
+  public static Map<String, String> getDigestMap(@NotNull SavePipeline pipeline, @NotNull StreamDataSource source) {
     try {
-      SModelHeader binaryModelHeader = Neo4JPersistence.readHeader(source);
-      binaryModelHeader.setMetaInfoProvider(new StuffedMetaModelInfo(new RegularMetaModelInfo(binaryModelHeader.getModelReference())));
-      final ModelLoadResult loadedModel = Neo4JPersistence.readModel(binaryModelHeader, source, false);
-      Map<String, String> result = Neo4JPersistence.getDigestMap(loadedModel.getModel(), binaryModelHeader.getMetaInfoProvider());
-      result.put(GeneratableSModel.FILE, ModelDigestUtil.hashBytes(source.openInputStream()));
-      return result;
+      SModelHeader header = Neo4JPersistence.readHeader(source);
+      return Neo4JPersistence.readDigestMap(pipeline, header.getModelReference().getModelId());
     } catch (ModelReadException ignored) {
       /* ignore */
-    } catch (IOException e) {
-      /* ignore */
     }
     return null;
   }
@@ -171,7 +198,10 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
   public static SModel createFromHeader(@NotNull SModelHeader header, @NotNull StreamDataSource dataSource) {
     final ModelFactory modelFactory = PersistenceFacade.getInstance().getModelFactory(MPSExtentions.MODEL_BINARY);
     assert modelFactory instanceof Neo4JModelPersistence;
-    return new DefaultSModelDescriptor(new Neo4JFacility((Neo4JModelPersistence) modelFactory, dataSource), header.createCopy());
+    Neo4JModelPersistence persistence = (Neo4JModelPersistence) modelFactory;
+    // the passed header may come from the stub only, the one on the SModel node is complete
+    SModelHeader stored = Neo4JPersistence.readHeader(persistence.getExecutor(), header.getModelReference().getModelId());
+    return createDescriptor(new Neo4JFacility(persistence, dataSource), stored != null ? stored : header.createCopy());
   }
 
   @NotNull
@@ -183,6 +213,17 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
   @Override
   public void initComponent() {
     LOG.debug("initComponent");
+    mySettings = Neo4JSettings.fromSystemProperties();
+    final BoltCypherExecutor executor = getExecutor();
+    Thread warmUp = new Thread(() -> {
+      try {
+        executor.warmUp();
+      } catch (RuntimeException e) {
+        LOG.warning("Could not connect to " + mySettings.getUrl() + ": " + e.getMessage());
+      }
+    }, "Neo4j connection warm-up");
+    warmUp.setDaemon(true);
+    warmUp.start();
     PersistenceFacade.getInstance().setModelFactory(MODEL_NEO4J, this);
   }
 
@@ -190,37 +231,119 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
   public void disposeComponent() {
     LOG.debug("disposeComponent");
     PersistenceFacade.getInstance().setModelFactory(MODEL_NEO4J, null);
+    for (SavePipeline pipeline : myPipelines.values()) {
+      pipeline.close();
+    }
+    myPipelines.clear();
+    for (BoltCypherExecutor executor : myExecutors.values()) {
+      SchemaManager.forget(executor);
+      MetaRegistry.forget(executor);
+      executor.close();
+    }
+    myExecutors.clear();
+  }
+
+  /**
+   * @return executor of the default database, see {@link Neo4JSettings#fromSystemProperties()}
+   */
+  @NotNull
+  public BoltCypherExecutor getExecutor() {
+    return getExecutor(mySettings);
+  }
+
+  /**
+   * @return executor with a connection pool shared by everyone using the same endpoint
+   */
+  @NotNull
+  public BoltCypherExecutor getExecutor(@NotNull Neo4JSettings settings) {
+    return myExecutors.computeIfAbsent(settings.getEndpointKey(), key -> new BoltCypherExecutor(settings));
+  }
+
+  @NotNull
+  public SavePipeline getSavePipeline() {
+    return getSavePipeline(mySettings);
+  }
+
+  /**
+   * @return save queue of the database, saves of different models are written by {@code neo4j.persistence.saveThreads}
+   * threads in parallel, at most {@code neo4j.persistence.saveQueueSize} saves wait to be written
+   */
+  @NotNull
+  public SavePipeline getSavePipeline(@NotNull Neo4JSettings settings) {
+    return myPipelines.computeIfAbsent(settings.getEndpointKey(), key -> new SavePipeline(getExecutor(settings),
+        Integer.getInteger("neo4j.persistence.saveThreads", SavePipeline.DEFAULT_PARALLELISM),
+        Integer.getInteger("neo4j.persistence.saveQueueSize", SavePipeline.DEFAULT_CAPACITY)));
+  }
+
+  private static void reportFailure(CompletableFuture<Void> save, SModelReference model) {
+    save.whenComplete((ignored, error) -> {
+      if (error != null) {
+        LOG.error("Failed to save " + model + " to Neo4j", error);
+      }
+    });
   }
 
   private static class Neo4JFacility extends LazyLoadFacility {
-    /*package*/ Neo4JFacility(Neo4JModelPersistence modelFactory, StreamDataSource dataSource) {
+    private final Neo4JModelPersistence myModelFactory;
+    private final ModelChangeTracker myChangeTracker = new ModelChangeTracker();
+
+    /*package*/ Neo4JFacility(Neo4JModelPersistence modelFactory, DataSource dataSource) {
       super(modelFactory, dataSource);
+      myModelFactory = modelFactory;
     }
 
-    @NotNull
-    @Override
-    public StreamDataSource getSource() {
-      return (StreamDataSource) super.getSource();
+    /*package*/ ModelChangeTracker getChangeTracker() {
+      return myChangeTracker;
+    }
+
+    private BoltCypherExecutor getExecutor() {
+      if (getSource() instanceof Neo4JDataSource) {
+        return myModelFactory.getExecutor(((Neo4JDataSource) getSource()).getSettings());
+      }
+      return myModelFactory.getExecutor();
+    }
+
+    private SavePipeline getSavePipeline() {
+      if (getSource() instanceof Neo4JDataSource) {
+        return myModelFactory.getSavePipeline(((Neo4JDataSource) getSource()).getSettings());
+      }
+      return myModelFactory.getSavePipeline();
     }
 
     @Override
     public Map<String, String> getGenerationHashes() {
-      Map<String, String> generationHashes = ModelDigestHelper.getInstance().getGenerationHashes(getSource());
-      if (generationHashes != null) return generationHashes;
-
-      return Neo4JModelPersistence.getDigestMap(getSource());
+      // the stub file doesn't change with the model, hashes cached for it (see ModelDigestHelper) would be stale
+      if (getSource() instanceof Neo4JDataSource) {
+        return Neo4JPersistence.readDigestMap(getSavePipeline(), ((Neo4JDataSource) getSource()).getModelId());
+      }
+      if (!(getSource() instanceof StreamDataSource)) {
+        return null;
+      }
+      return Neo4JModelPersistence.getDigestMap(getSavePipeline(), (StreamDataSource) getSource());
     }
 
     @NotNull
     @Override
     public SModelHeader readHeader() throws ModelReadException {
-      return Neo4JPersistence.readHeader(getSource());
+      if (getSource() instanceof Neo4JDataSource) {
+        Neo4JDataSource source = (Neo4JDataSource) getSource();
+        SModelHeader header = Neo4JPersistence.readHeader(getExecutor(), source.getModelId());
+        if (header == null) {
+          throw new ModelReadException("No model " + source.getModelId() + " in " + source.getLocation(), null);
+        }
+        return header;
+      }
+      return Neo4JPersistence.readHeader(getExecutor(), (StreamDataSource) getSource());
     }
 
     @NotNull
     @Override
     public ModelLoadResult readModel(@NotNull SModelHeader header, @NotNull ModelLoadingState state) throws ModelReadException {
-      return Neo4JPersistence.readModel(header, getSource(), state == ModelLoadingState.INTERFACE_LOADED);
+      getSavePipeline().flush(NodeUtils.getModelId(header.getModelReference().getModelId()));
+      ModelLoadResult result = Neo4JPersistence.readModel(getExecutor(), header, state == ModelLoadingState.INTERFACE_LOADED);
+      // what we've got is exactly what is in the database
+      myChangeTracker.markInSync();
+      return result;
     }
 
     @Override
@@ -231,7 +354,8 @@ public class Neo4JModelPersistence implements ApplicationComponent, ModelFactory
 
     @Override
     public void saveModel(@NotNull SModelHeader header, SModelData modelData) throws IOException {
-      Neo4JPersistence.writeModel((jetbrains.mps.smodel.SModel) modelData, getSource());
+      jetbrains.mps.smodel.SModel model = (jetbrains.mps.smodel.SModel) modelData;
+      reportFailure(Neo4JPersistence.writeModel(getSavePipeline(), model, getSource(), myChangeTracker), model.getReference());
     }
   }
 }
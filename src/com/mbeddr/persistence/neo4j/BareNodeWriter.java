@@ -15,13 +15,14 @@
  */
 package com.mbeddr.persistence.neo4j;
 
-import jetbrains.mps.smodel.adapter.ids.MetaIdHelper;
-import jetbrains.mps.util.IterableUtil;
+import jetbrains.mps.util.io.ModelOutputStream;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.mps.openapi.language.SConcept;
 import org.jetbrains.mps.openapi.language.SProperty;
 import org.jetbrains.mps.openapi.model.*;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
 
@@ -43,48 +44,166 @@ public class BareNodeWriter {
   static final byte REF_OTHER_MODEL = 18;
 
   protected final SModelReference myModelReference;
+  private final Object myModelId;
+  private final MetaRegistry myRegistry;
+  // met while writing and not in the registry yet
+  private final Set<SConcept> myNewConcepts = new HashSet<SConcept>();
+  private final Set<SProperty> myNewProperties = new HashSet<SProperty>();
 
-  public BareNodeWriter(@NotNull SModelReference modelReference) {
+  /**
+   * @param registry gives the ids of concepts and properties once the statements are created, those it doesn't
+   * know are collected, see {@link #registerNew()}
+   */
+  public BareNodeWriter(@NotNull SModelReference modelReference, @NotNull MetaRegistry registry) {
     myModelReference = modelReference;
+    myModelId = NodeUtils.getModelId(modelReference.getModelId());
+    myRegistry = registry;
   }
 
-  public List<CypherStatement> writeRoots(Collection<SNode> nodes){
-    ArrayList<CypherStatement> cypherRecords = new ArrayList<CypherStatement>();
-    for (SNode n : nodes) {
-      cypherRecords.addAll(writeNode(n));
-      cypherRecords.add(new CreateRootRelation(n, myModelReference));
-    }
-    return cypherRecords;
+  /**
+   * Statements of the subtree, produced while walking it. Nodes come in pre-order, each followed by its references and
+   * the relationships to its children, so statements needing nodes to be created come before the child nodes themselves.
+   * Only the statements of one node are buffered, the tree is walked with an explicit stack.
+   */
+  public final Iterator<CypherStatement> iterateNode(SNode node) {
+    return new SubtreeStatements(node, null);
+  }
+
+  /**
+   * Same as {@link #iterateNode(SNode)}, the {@link ModelDigest} of the root is stored with it
+   */
+  public final Iterator<CypherStatement> iterateRoot(SNode root) {
+    return new SubtreeStatements(root, ModelDigest.root(root));
   }
 
-  public final List<CypherStatement> writeNode(SNode node) {
-    ArrayList<CypherStatement> nodes = new ArrayList<>();
+  private CreateNode createNode(SNode node) {
     CreateNode createNode = new CreateNode("SNode");
 
-    createNode.addConcept("concept", node.getConcept());
+    createNode.setContent(NodeContent.of(node, this), myRegistry);
     createNode.addNodeId(node.getNodeId());
+    createNode.addString("ModelId", (String) myModelId);
+    // references from other models find the node by model and node id
+    createNode.addString("Key", NodeUtils.getNodeKey(myModelReference, node.getNodeId()));
+
+    noteMeta(node.getConcept(), node.getProperties());
+    return createNode;
+  }
 
-    Collection<SProperty> propertyCollection = IterableUtil.asCollection(node.getProperties());
-    for (SProperty prop : propertyCollection)
-    {
-      createNode.addString("Property_" + MetaIdHelper.getProperty(prop).serialize(), node.getProperty(prop));
+  /**
+   * Remembers those of the concept and properties the registry doesn't know yet
+   */
+  /*package*/ void noteMeta(SConcept concept, Iterable<SProperty> properties) {
+    if (concept != null && !myRegistry.isKnown(concept)) {
+      myNewConcepts.add(concept);
     }
-    nodes.add(createNode);
-    Collection<SNode> childNodes = IterableUtil.asCollection(node.getChildren());
-    for (SNode child : childNodes)
-    {
-      nodes.addAll(writeNode(child));
-      nodes.add(new CreateChildReleation(node, child, child.getContainmentLink()));
+    for (SProperty property : properties) {
+      if (!myRegistry.isKnown(property)) {
+        myNewProperties.add(property);
+      }
     }
+  }
+
+  /**
+   * Gives ids to the concepts and properties met so far that had none, to be called by the save task before
+   * the statements are created.
+   */
+  public void registerNew() {
+    myRegistry.register(new ArrayList<SConcept>(myNewConcepts), new ArrayList<SProperty>(myNewProperties));
+  }
 
-    for (SReference ref : node.getReferences()) {
-      nodes.add(new CreateReference(ref));
+  private final class SubtreeStatements implements Iterator<CypherStatement> {
+    private final Deque<SNode> myNodes = new ArrayDeque<SNode>();
+    private final Deque<CypherStatement> myPending = new ArrayDeque<CypherStatement>();
+    private final ArrayList<SNode> myChildren = new ArrayList<SNode>();
+    private String myRootDigest;
+
+    SubtreeStatements(SNode root, String rootDigest) {
+      myNodes.push(root);
+      myRootDigest = rootDigest;
     }
 
-    return nodes;
+    @Override
+    public boolean hasNext() {
+      return !myPending.isEmpty() || !myNodes.isEmpty();
+    }
+
+    @Override
+    public CypherStatement next() {
+      if (myPending.isEmpty()) {
+        if (myNodes.isEmpty()) {
+          throw new NoSuchElementException();
+        }
+        visit(myNodes.pop());
+      }
+      return myPending.poll();
+    }
+
+    private void visit(SNode node) {
+      CreateNode createNode = createNode(node);
+      if (myRootDigest != null) {
+        createNode.addString(ModelDigest.PROPERTY, myRootDigest);
+        myRootDigest = null;
+      }
+      myPending.add(createNode);
+      for (SReference ref : node.getReferences()) {
+        myPending.add(new CreateReference(ref));
+      }
+      int index = 0;
+      for (SNode child : node.getChildren()) {
+        myPending.add(new CreateChildReleation(node, child, child.getContainmentLink(), index++));
+        myChildren.add(child);
+      }
+      // pushed in reverse, so the first child is visited next
+      for (int i = myChildren.size() - 1; i >= 0; i--) {
+        myNodes.push(myChildren.get(i));
+      }
+      myChildren.clear();
+    }
   }
 
+  /**
+   * Counterpart of {@link BareNodeReader#readUserObjects(SNode)}, objects of unknown types are skipped
+   */
+  protected void writeUserObjects(ModelOutputStream os, SNode node) throws IOException {
+    List<Object> knownUserObjects = new ArrayList<Object>();
+    for (Object key : node.getUserObjectKeys()) {
+      Object value = node.getUserObject(key);
+      if (isKnownUserObject(key) && isKnownUserObject(value)) {
+        knownUserObjects.add(key);
+        knownUserObjects.add(value);
+      }
+    }
+    os.writeShort(knownUserObjects.size());
+    for (Object object : knownUserObjects) {
+      writeUserObject(os, object);
+    }
+  }
 
+  private void writeUserObject(ModelOutputStream os, Object object) throws IOException {
+    if (object instanceof SNodeReference) {
+      os.writeByte(USER_NODE_POINTER);
+      os.writeNodePointer((SNodeReference) object);
+    } else if (object instanceof String) {
+      os.writeByte(USER_STRING);
+      os.writeString((String) object);
+    } else if (object == null) {
+      os.writeByte(USER_NULL);
+    } else if (object instanceof SNodeId) {
+      os.writeByte(USER_NODE_ID);
+      os.writeNodeId((SNodeId) object);
+    } else if (object instanceof SModelId) {
+      os.writeByte(USER_MODEL_ID);
+      os.writeModelID((SModelId) object);
+    } else if (object instanceof SModelReference) {
+      os.writeByte(USER_MODEL_REFERENCE);
+      os.writeModelReference((SModelReference) object);
+    } else {
+      os.writeByte(USER_SERIALIZABLE);
+      ObjectOutputStream stream = new ObjectOutputStream(os);
+      stream.writeObject(object);
+      stream.flush();
+    }
+  }
 
   protected boolean isKnownUserObject(Object object) {
     return object == null
@@ -0,0 +1,10 @@
+package com.mbeddr.persistence.neo4j;
+
+/**
+ * A relationship statement that can be merged into a {@link RelationBatch} by the {@link RelationBatchWriter}.
+ */
+public interface BatchableRelation extends CypherStatement {
+    RelationBatch.Kind getBatchKind();
+
+    void addTo(RelationBatch batch);
+}
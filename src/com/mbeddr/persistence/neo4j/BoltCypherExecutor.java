@@ -1,53 +1,304 @@
 package com.mbeddr.persistence.neo4j;
 
 import org.neo4j.driver.v1.*;
+import org.neo4j.driver.v1.exceptions.ClientException;
+import org.neo4j.driver.v1.exceptions.TransientException;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by kdummann on 27/10/2016.
  */
-public class BoltCypherExecutor {
+public class BoltCypherExecutor implements AutoCloseable {
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_DELAY = 50;
+
     private final org.neo4j.driver.v1.Driver driver;
+    // runs the asynchronous calls, one thread per session of the pool, calls beyond that wait in the queue
+    private final ExecutorService workers;
+    private final Semaphore sessionPermits;
+    private final long acquisitionTimeout;
+    private final String endpointKey;
 
     public BoltCypherExecutor(String url) {
         this(url, null, null);
     }
 
     public BoltCypherExecutor(String url, String username, String password) {
+        this(new Neo4JSettings(url, username, password, Neo4JSettings.DEFAULT_POOL_SIZE, Neo4JSettings.DEFAULT_ACQUISITION_TIMEOUT));
+    }
+
+    public BoltCypherExecutor(Neo4JSettings settings) {
+        String password = settings.getPassword();
         boolean hasPassword = password != null && !password.isEmpty();
-        AuthToken token = hasPassword ? AuthTokens.basic(username, password) : AuthTokens.none();
-        driver = GraphDatabase.driver(url, token, Config.build().withEncryptionLevel(Config.EncryptionLevel.NONE).toConfig());
+        AuthToken token = hasPassword ? AuthTokens.basic(settings.getUsername(), password) : AuthTokens.none();
+        driver = GraphDatabase.driver(settings.getUrl(), token, Config.build()
+                .withEncryptionLevel(Config.EncryptionLevel.NONE)
+                .withMaxSessions(settings.getPoolSize())
+                .toConfig());
+        sessionPermits = new Semaphore(settings.getPoolSize(), true);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(settings.getPoolSize(), settings.getPoolSize(), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "Neo4j I/O");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        workers = pool;
+        acquisitionTimeout = settings.getAcquisitionTimeout();
+        endpointKey = settings.getEndpointKey();
+    }
+
+    /**
+     * @see Neo4JSettings#getEndpointKey()
+     */
+    public String getEndpointKey() {
+        return endpointKey;
     }
 
     public Iterator<Map<String, Object>> query(String query, Map<String, Object> params) {
-        try (Session session = driver.session()) {
-            List<Map<String, Object>> list = session.run(query, params)
-                    .list( r -> r.asMap(BoltCypherExecutor::convert));
-            return list.iterator();
-        }
+        return query(new Statement(query, params));
     }
 
+    /**
+     * Runs the statements in a single transaction, which is rolled back if any of them fails.
+     */
     public void excec(Iterable<Statement> statements) {
-        try(Session session = driver.session()) {
-            Transaction transaction = session.beginTransaction();
-            for (Statement statement : statements) {
-                transaction.run(statement);
+        transact(statements);
+    }
+
+    /**
+     * Like {@link #excec(Iterable)}, but transactions failing with a transient error (e.g. a deadlock) are retried.
+     */
+    public void excecWithRetry(Iterable<Statement> statements) {
+        queryWithRetry(statements);
+    }
+
+    /**
+     * Like {@link #excecWithRetry(Iterable)}, the rows of the last statement are returned, read before the
+     * transaction commits.
+     */
+    public Iterator<Map<String, Object>> queryWithRetry(Iterable<Statement> statements) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transact(statements).iterator();
+            } catch (TransientException e) {
+                if (attempt == MAX_RETRIES) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs each of the given transactions with {@link #excecWithRetry(Iterable)}, up to {@code parallelism} of
+     * them at the same time in separate sessions. Returns once all are done, rethrows the first failure.
+     */
+    public void excecInParallel(List<? extends Iterable<Statement>> transactions, int parallelism) {
+        ConcurrentLinkedQueue<Iterable<Statement>> queue = new ConcurrentLinkedQueue<>(transactions);
+        ArrayList<CompletableFuture<Void>> running = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, transactions.size()); i++) {
+            running.add(CompletableFuture.runAsync(() -> {
+                Iterable<Statement> next;
+                while ((next = queue.poll()) != null) {
+                    excecWithRetry(next);
+                }
+            }, workers));
+        }
+        await(CompletableFuture.allOf(running.toArray(new CompletableFuture[running.size()])));
+    }
+
+    /**
+     * Same as {@link #excec(Iterable)}, but returns right away. The statements of the transaction are sent without
+     * waiting for the result of the previous one.
+     */
+    public CompletionStage<Void> excecAsync(Iterable<Statement> statements) {
+        return CompletableFuture.runAsync(() -> excec(statements), workers);
+    }
+
+    public CompletionStage<Void> excecWithRetryAsync(Iterable<Statement> statements) {
+        return CompletableFuture.runAsync(() -> excecWithRetry(statements), workers);
+    }
+
+    public CompletionStage<List<Map<String, Object>>> queryAsync(Statement query) {
+        return CompletableFuture.supplyAsync(() -> list(query), workers);
+    }
+
+    /**
+     * Runs the query in the background, the decoded rows are collected into a list.
+     */
+    public <T> CompletionStage<List<T>> queryAsync(Statement query, RowDecoder<T> decoder) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Stream<T> rows = stream(query, decoder)) {
+                return rows.collect(Collectors.toList());
+            }
+        }, workers);
+    }
+
+    /**
+     * Waits for an asynchronous call, its failure is rethrown as is.
+     */
+    public static <T> T await(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting for the database");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            transaction.success();
-            transaction.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            throw new ClientException(e.getCause().getMessage());
         }
     }
 
+    /**
+     * Reads the whole result before returning, use {@link #stream(Statement, RowDecoder)} for large results.
+     */
     public Iterator<Map<String, Object>> query(Statement query) {
+        return list(query).iterator();
+    }
+
+    private List<Map<String, Object>> transact(Iterable<Statement> statements) {
+        return withSession(session -> {
+            try (Transaction transaction = session.beginTransaction()) {
+                StatementResult last = null;
+                for (Statement statement : statements) {
+                    last = transaction.run(statement);
+                }
+                List<Map<String, Object>> rows = last == null ? Collections.emptyList() : last.list(r -> r.asMap(BoltCypherExecutor::convert));
+                transaction.success();
+                return rows;
+            }
+        });
+    }
+
+    private List<Map<String, Object>> list(Statement query) {
+        return withSession(session -> session.run(query)
+                .list( r -> r.asMap(BoltCypherExecutor::convert)));
+    }
+
+    /**
+     * Records are fetched as the stream is consumed. The session stays open until the stream is exhausted or closed,
+     * so close it (try-with-resources) when it might not be read to the end.
+     */
+    public <T> Stream<T> stream(Statement query, RowDecoder<T> decoder) {
+        acquireSession();
+        Session session;
+        StatementResult result;
+        try {
+            session = driver.session();
+        } catch (RuntimeException e) {
+            sessionPermits.release();
+            throw e;
+        }
+        Runnable close = new Runnable() {
+            private boolean closed;
+
+            @Override
+            public synchronized void run() {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        session.close();
+                    } finally {
+                        sessionPermits.release();
+                    }
+                }
+            }
+        };
+        try {
+            result = session.run(query);
+        } catch (RuntimeException e) {
+            close.run();
+            throw e;
+        }
+        Iterator<T> rows = new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                if (result.hasNext()) {
+                    return true;
+                }
+                close.run();
+                return false;
+            }
+
+            @Override
+            public T next() {
+                return decoder.decode(result.next());
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED), false)
+                .onClose(close);
+    }
+
+    /**
+     * Opens as many connections as the pool holds, so that the first statements don't pay for the handshake.
+     */
+    public void warmUp() {
+        Session[] sessions = new Session[sessionPermits.availablePermits()];
+        try {
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = driver.session();
+                sessions[i].run("RETURN 1").consume();
+            }
+        } finally {
+            for (Session session : sessions) {
+                if (session != null) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+        driver.close();
+    }
+
+    private <T> T withSession(Function<Session, T> work) {
+        acquireSession();
         try (Session session = driver.session()) {
-            List<Map<String, Object>> list = session.run(query)
-                    .list( r -> r.asMap(BoltCypherExecutor::convert));
-            return list.iterator();
+            return work.apply(session);
+        } finally {
+            sessionPermits.release();
+        }
+    }
+
+    private void acquireSession() {
+        try {
+            if (!sessionPermits.tryAcquire(acquisitionTimeout, TimeUnit.MILLISECONDS)) {
+                throw new ClientException("Could not acquire a session within " + acquisitionTimeout + "ms, all connections are in use");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting for a session");
         }
     }
 
@@ -11,30 +11,51 @@ import java.util.HashMap;
 /**
  * Created by kdummann on 27/10/2016.
  */
-public class CreateChildReleation implements CypherStatement {
+public class CreateChildReleation implements BatchableRelation {
 
     private final SNode parent;
     private final SNode child;
     private final SContainmentLink link;
+    private final int index;
 
-    public CreateChildReleation(SNode parent, SNode child, SContainmentLink link) {
+    public CreateChildReleation(SNode parent, SNode child, SContainmentLink link, int index) {
         this.parent = parent;
         this.child = child;
         this.link = link;
+        this.index = index;
     }
 
 
 
+    @Override
+    public RelationBatch.Kind getBatchKind() {
+        return RelationBatch.Kind.CONTAINMENT;
+    }
+
+    @Override
+    public void addTo(RelationBatch batch) {
+        batch.add(NodeUtils.getNodeKey(parent),
+                NodeUtils.getNodeKey(child),
+                MetaIdHelper.getAggregation(link).serialize(),
+                null,
+                index);
+    }
+
+    @Override
+    public boolean needsNodesToBeCreated() {
+        return true;
+    }
+
     @Override
     public Statement toStatement() {
         HashMap<String, Object> values = new HashMap<>();
-        values.put("ida", NodeUtils.getNodeId(parent.getNodeId()));
-        values.put("idb", NodeUtils.getNodeId(child.getNodeId()));
+        values.put("ida", NodeUtils.getNodeKey(parent));
+        values.put("idb", NodeUtils.getNodeKey(child));
         values.put("idLink", MetaIdHelper.getAggregation(link).serialize());
-
+        values.put("index", index);
 
         return new Statement(
-                "MATCH (a:SNode),(b:SNode) WHERE a.NodeId = {ida} AND b.NodeId = {idb} CREATE (a)-[r:CONTAINMENT {Id : {idLink}}]->(b)",
+                "MATCH (a:SNode),(b:SNode) WHERE a.Key = {ida} AND b.Key = {idb} CREATE (a)-[r:CONTAINMENT {Id : {idLink}, Index : {index}}]->(b)",
                 values);
     }
 }
@@ -1,22 +1,25 @@
 package com.mbeddr.persistence.neo4j;
 
-import jetbrains.mps.smodel.adapter.ids.MetaIdHelper;
-import jetbrains.mps.smodel.adapter.ids.SConceptId;
-import org.jetbrains.mps.openapi.language.SConcept;
 import org.jetbrains.mps.openapi.model.SNodeId;
 import org.neo4j.driver.v1.Statement;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 /**
  * Created by kdummann on 26/10/2016.
  */
-public class CreateNode implements CypherStatement{
+public class CreateNode implements DeferredStatement {
     private String label;
     private final List<CypherAttribute> attributes = new ArrayList<CypherAttribute>();
+    // added to the attributes once they are needed, see DeferredStatement
+    private NodeContent content;
+    private MetaRegistry registry;
 
     public CreateNode() {
         this(null);
@@ -42,9 +45,9 @@ public class CreateNode implements CypherStatement{
         this.attributes.add(new CypherAttribute(key, value, CypherAttribute.Type.MAP));
     }
 
-    public void addConcept(String key, SConcept value) {
-        SConceptId id = MetaIdHelper.getConcept(value);
-        addString(key, id.serialize());
+    /*package*/ void setContent(NodeContent content, MetaRegistry registry) {
+        this.content = content;
+        this.registry = registry;
     }
 
     public void addNodeId(SNodeId nodeId) {
@@ -56,34 +59,47 @@ public class CreateNode implements CypherStatement{
         }
     }
 
-    public Statement toStatement() {
-        StringBuilder builder = new StringBuilder();
+    public String getLabel() {
+        return label;
+    }
 
-        builder.append("CREATE (e");
-        if(this.label != null && !this.label.isEmpty()) {
-            builder.append(":" + label + " ");
-        }
-        builder.append("{ ");
+    public List<CypherAttribute> getAttributes() {
+        resolve();
+        return Collections.unmodifiableList(attributes);
+    }
 
-        boolean first = true;
+    /**
+     * Label, attribute keys and the shape of the content, nodes with equal shapes can be created by the same
+     * statement text. Doesn't need the ids of the registry.
+     */
+    public Object getShape() {
+        TreeSet<String> keys = new TreeSet<>();
         for (CypherAttribute attr : attributes) {
-            if(!first) {
-                builder.append(",");
-            }
-            builder.append("`");
-            builder.append(attr.getKey());
-            builder.append("`");
-            builder.append(":");
-            builder.append("{`");
-            builder.append(attr.getKey());
-            builder.append("`}");
-            first = false;
+            keys.add(attr.getKey());
         }
+        return Arrays.asList(label, keys, content == null ? null : content.getShape());
+    }
 
-        builder.append("})");
+    /*package*/ TreeSet<String> getKeys() {
+        resolve();
+        TreeSet<String> keys = new TreeSet<>();
+        for (CypherAttribute attr : attributes) {
+            keys.add(attr.getKey());
+        }
+        return keys;
+    }
 
-        return new Statement(builder.toString(), this.attributes
+    public Statement toStatement() {
+        resolve();
+        return new Statement(StatementTemplates.createNode(label, getKeys()), this.attributes
                 .stream()
                 .collect(Collectors.toMap(x ->  x.getKey(), CypherAttribute::getValue)));
     }
+
+    private void resolve() {
+        if (content != null) {
+            content.addTo(this, registry);
+            content = null;
+        }
+    }
 }
@@ -0,0 +1,44 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.neo4j.driver.v1.Statement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates a batch of nodes sharing the same label and attribute keys with a single UNWIND statement.
+ * The nodes are kept as they are until the statement is needed, see {@link DeferredStatement}.
+ */
+public class CreateNodeBatch implements DeferredStatement {
+    private final String label;
+    private final List<CreateNode> nodes = new ArrayList<>();
+
+    public CreateNodeBatch(CreateNode first) {
+        this.label = first.getLabel();
+    }
+
+    public void add(CreateNode node) {
+        nodes.add(node);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public Statement toStatement() {
+        List<Map<String, Object>> rows = new ArrayList<>(nodes.size());
+        for (CreateNode node : nodes) {
+            HashMap<String, Object> row = new HashMap<>();
+            for (CypherAttribute attr : node.getAttributes()) {
+                row.put(attr.getKey(), attr.getValue());
+            }
+            rows.add(row);
+        }
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("rows", rows);
+        return new Statement(StatementTemplates.createNodeBatch(label, nodes.get(0).getKeys()), values);
+    }
+}
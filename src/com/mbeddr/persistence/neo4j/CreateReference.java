@@ -12,7 +12,7 @@ import java.util.HashMap;
 /**
  * Created by kdummann on 27/10/2016.
  */
-public class CreateReference implements CypherStatement {
+public class CreateReference implements BatchableRelation {
 
     private final SReference ref;
 
@@ -25,30 +25,70 @@ public class CreateReference implements CypherStatement {
         return true;
     }
 
+    @Override
+    public RelationBatch.Kind getBatchKind() {
+        return isLocal(asStaticReference()) ? RelationBatch.Kind.REFERENCE : RelationBatch.Kind.EXTERNAL_REFERENCE;
+    }
+
+    /**
+     * Compared by model id, the target model doesn't have to be loaded or even resolvable
+     */
+    private static boolean isLocal(StaticReference reference) {
+        return reference.getSourceNode().getModel().getReference().getModelId().equals(reference.getTargetSModelReference().getModelId());
+    }
+
+    @Override
+    public void addTo(RelationBatch batch) {
+        StaticReference staticReference = asStaticReference();
+        Object modelId = batch.getKind() == RelationBatch.Kind.EXTERNAL_REFERENCE
+                ? NodeUtils.getModelId(staticReference.getTargetSModelReference().getModelId())
+                : null;
+        SNode source = staticReference.getSourceNode();
+        // a local target is found by its key, an external one by model and node id
+        Object target = batch.getKind() == RelationBatch.Kind.EXTERNAL_REFERENCE
+                ? NodeUtils.getNodeId(staticReference.getTargetNodeId())
+                : NodeUtils.getNodeKey(source.getModel().getReference(), staticReference.getTargetNodeId());
+        batch.add(NodeUtils.getNodeKey(source),
+                target,
+                MetaIdHelper.getAssociation(staticReference.getLink()).serialize(),
+                modelId,
+                null);
+    }
+
+    private StaticReference asStaticReference() {
+        if (ref instanceof StaticReference) {
+            return (StaticReference) ref;
+        }
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public Statement toStatement() {
         if(ref instanceof StaticReference) {
             StaticReference staticReference = (StaticReference) this.ref;
-            if (staticReference.getSourceNode().getModel() == staticReference.getTargetSModel()) {
+            if (isLocal(staticReference)) {
                 HashMap<String, Object> values = new HashMap<>();
-                values.put("idA", NodeUtils.getNodeId(staticReference.getSourceNode().getNodeId()));
-                values.put("idB", NodeUtils.getNodeId(staticReference.getTargetNode().getNodeId()));
+                values.put("idA", NodeUtils.getNodeKey(staticReference.getSourceNode()));
+                values.put("idB", NodeUtils.getNodeKey(staticReference.getSourceNode().getModel().getReference(), staticReference.getTargetNodeId()));
                 values.put("idLink", MetaIdHelper.getAssociation(staticReference.getLink()).serialize());
                 return new Statement(
-                            "MATCH (a:SNode),(b:SNode) WHERE a.NodeId = {idA} AND b.NodeId = {idB} CREATE (a)-[r:REFERENCE {Id : {idLink}}]->(b)",
+                            "MATCH (a:SNode),(b:SNode) WHERE a.Key = {idA} AND b.Key = {idB} CREATE (a)-[r:REFERENCE {Id : {idLink}}]->(b)",
                         values);
                 //same model we can create the reference to that node here
-            } else if (staticReference.getSourceNode().getModel().getModelRoot() == staticReference.getTargetSModel().getModelRoot()) {
-                // todo: then custom model root is implemented we can set the reference directly because its in the same
-                // database.
-                throw new UnsupportedOperationException();
             } else {
+                // directly to the target node if its model is stored in the same database, to a proxy otherwise
                 HashMap<String, Object> values = new HashMap<>();
-                values.put("idSource", NodeUtils.getNodeId(staticReference.getSourceNode().getNodeId()));
-                values.put("idTarget", NodeUtils.getNodeId(staticReference.getTargetNode().getNodeId()));
-                values.put("modelId", NodeUtils.getModelId(staticReference.getTargetSModel().getModelId()));
+                values.put("idSource", NodeUtils.getNodeKey(staticReference.getSourceNode()));
+                values.put("idTarget", NodeUtils.getNodeId(staticReference.getTargetNodeId()));
+                values.put("modelId", NodeUtils.getModelId(staticReference.getTargetSModelReference().getModelId()));
                 values.put("idLink", MetaIdHelper.getAssociation(staticReference.getLink()).serialize());
-                return new Statement("MATCH (source:SNode) WHERE source.NodeId = {idSource} CREATE (source)-[r:REFERENCE { Id : {idLink}}]-> (proxy:SReferenceProxy {ModelId: {modelId}, NodeId: {idTarget}})"
+                return new Statement("WITH {modelId} AS model, {idTarget} AS target, {idLink} AS link " +
+                                     "MATCH (a:SNode) WHERE a.Key = {idSource} " +
+                                     "OPTIONAL MATCH (b:SNode) WHERE b.Key = " + NodeUtils.NODE_KEY + " " +
+                                     "FOREACH (x IN CASE WHEN b IS NULL THEN [] ELSE [1] END | CREATE (a)-[:REFERENCE {Id : link}]->(b)) " +
+                                     "FOREACH (x IN CASE WHEN b IS NULL THEN [1] ELSE [] END | " +
+                                     "MERGE (proxy:SReferenceProxy {Key : " + NodeUtils.NODE_KEY + "}) ON CREATE SET proxy.ModelId = model, proxy.NodeId = target " +
+                                     "CREATE (a)-[:REFERENCE {Id : link}]->(proxy))"
                                     , values);
             }
 
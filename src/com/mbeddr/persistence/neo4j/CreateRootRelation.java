@@ -9,25 +9,43 @@ import java.util.HashMap;
 /**
  * Created by kdummann on 27/10/2016.
  */
-public class CreateRootRelation implements CypherStatement {
+public class CreateRootRelation implements BatchableRelation {
 
     private SNode root;
     private SModelReference modelReference;
+    private int index;
 
-    public CreateRootRelation(SNode root, SModelReference modelReference) {
+    public CreateRootRelation(SNode root, SModelReference modelReference, int index) {
 
         this.root = root;
         this.modelReference = modelReference;
+        this.index = index;
+    }
+
+    @Override
+    public RelationBatch.Kind getBatchKind() {
+        return RelationBatch.Kind.ROOT;
+    }
+
+    @Override
+    public void addTo(RelationBatch batch) {
+        batch.add(NodeUtils.getModelId(modelReference.getModelId()), NodeUtils.getNodeKey(modelReference, root.getNodeId()), null, null, index);
+    }
+
+    @Override
+    public boolean needsNodesToBeCreated() {
+        return true;
     }
 
     @Override
     public Statement toStatement() {
         HashMap<String, Object> values = new HashMap<>();
-        values.put("idRoot", NodeUtils.getNodeId(root.getNodeId()));
+        values.put("idRoot", NodeUtils.getNodeKey(modelReference, root.getNodeId()));
         values.put("idModel", NodeUtils.getModelId(modelReference.getModelId()));
+        values.put("index", index);
 
         return new Statement(
-                "MATCH (a:SModel),(b:SNode) WHERE a.Id = {idModel} AND b.NodeId = {idRoot} CREATE (a)-[r:ROOT]->(b)",
+                "MATCH (a:SModel),(b:SNode) WHERE a.Id = {idModel} AND b.Key = {idRoot} CREATE (a)-[r:ROOT {Index : {index}}]->(b)",
                 values);
     }
 }
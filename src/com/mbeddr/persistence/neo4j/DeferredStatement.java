@@ -0,0 +1,9 @@
+package com.mbeddr.persistence.neo4j;
+
+/**
+ * A statement that takes everything it needs from the model when it's created, but refers to concepts and properties
+ * by their {@link MetaRegistry} ids. It's turned into a {@link org.neo4j.driver.v1.Statement} by the save task, once
+ * the ids are allocated, the model may have changed by then.
+ */
+public interface DeferredStatement extends CypherStatement {
+}
@@ -0,0 +1,34 @@
+package com.mbeddr.persistence.neo4j;
+
+import jetbrains.mps.smodel.adapter.ids.MetaIdHelper;
+import org.jetbrains.mps.openapi.language.SReferenceLink;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.neo4j.driver.v1.Statement;
+
+import java.util.HashMap;
+
+/**
+ * Removes the REFERENCE relation of a node for a given link, and the proxy it pointed to if nothing else refers to it.
+ */
+public class DeleteReference implements CypherStatement {
+
+    private final SNode node;
+    private final SReferenceLink link;
+
+    public DeleteReference(SNode node, SReferenceLink link) {
+        this.node = node;
+        this.link = link;
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("id", NodeUtils.getNodeKey(node));
+        values.put("idLink", MetaIdHelper.getAssociation(link).serialize());
+
+        return new Statement(
+                "MATCH (n:SNode)-[r:REFERENCE]->(target) WHERE n.Key = {id} AND r.Id = {idLink} DELETE r " +
+                "WITH DISTINCT target WHERE target:SReferenceProxy AND NOT ()-[:REFERENCE]->(target) DELETE target",
+                values);
+    }
+}
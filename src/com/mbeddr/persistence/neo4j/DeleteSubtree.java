@@ -0,0 +1,36 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.neo4j.driver.v1.Statement;
+
+import java.util.HashMap;
+
+/**
+ * Deletes a node together with everything it contains, and the proxies only the deleted nodes referred to.
+ */
+public class DeleteSubtree implements CypherStatement {
+
+    private final SModelReference modelReference;
+    private final SNode node;
+
+    public DeleteSubtree(SModelReference modelReference, SNode node) {
+        this.modelReference = modelReference;
+        this.node = node;
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("id", NodeUtils.getNodeKey(modelReference, node.getNodeId()));
+
+        return new Statement(
+                "MATCH (n:SNode) WHERE n.Key = {id} MATCH (n)-[:CONTAINMENT*0..]->(m:SNode) " +
+                "OPTIONAL MATCH (m)-[:REFERENCE]->(p:SReferenceProxy) " +
+                "WITH collect(DISTINCT m) AS nodes, collect(DISTINCT p) AS proxies " +
+                "UNWIND nodes AS m DETACH DELETE m " +
+                "WITH DISTINCT proxies UNWIND proxies AS p " +
+                "WITH p WHERE NOT ()-[:REFERENCE]->(p) DELETE p",
+                values);
+    }
+}
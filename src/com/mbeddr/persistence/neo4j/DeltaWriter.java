@@ -0,0 +1,164 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.mps.openapi.language.SContainmentLink;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.language.SReferenceLink;
+import org.jetbrains.mps.openapi.model.SModel;
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.jetbrains.mps.openapi.model.SReference;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates the changes recorded by a {@link ModelChangeTracker} into the statements that bring the database
+ * from the previously saved state of a model to its current state.
+ */
+public class DeltaWriter {
+
+    private final SModelReference myModelReference;
+    private final int myBatchSize;
+    private final MetaRegistry myRegistry;
+    private final BareNodeWriter myNodeWriter;
+
+    public DeltaWriter(@NotNull SModelReference modelReference, int batchSize, @NotNull MetaRegistry registry) {
+        myModelReference = modelReference;
+        myBatchSize = batchSize;
+        myRegistry = registry;
+        myNodeWriter = new BareNodeWriter(modelReference, registry);
+    }
+
+    /**
+     * Gives ids to the concepts and properties of the written statements that had none, to be called by the save
+     * task before the {@link DeferredStatement}s are created
+     */
+    public void registerNew() {
+        myNodeWriter.registerNew();
+    }
+
+    public List<CypherStatement> write(ModelChangeTracker.Changes changes) {
+        Map<SNode, SContainmentLink> added = changes.getAddedNodes();
+        Set<SNode> removed = changes.getRemovedNodes();
+
+        // nodes whose whole subtree is written from scratch
+        Set<SNode> newNodes = new HashSet<>(added.keySet());
+        newNodes.removeAll(removed);
+
+        // moved nodes are detached first, a subtree they were moved out of must not take them along when it is deleted
+        ArrayList<CypherStatement> removals = new ArrayList<>();
+        ArrayList<CypherStatement> deletions = new ArrayList<>();
+        for (SNode node : removed) {
+            boolean moved = added.containsKey(node) && !isInside(node.getParent(), newNodes);
+            if (moved) {
+                removals.add(new DetachNode(myModelReference, node));
+            } else {
+                deletions.add(new DemoteReferences(myModelReference, node));
+                deletions.add(new DeleteSubtree(myModelReference, node));
+            }
+        }
+        removals.addAll(deletions);
+
+        ArrayList<CypherStatement> nodes = new ArrayList<>();
+        ArrayList<CypherStatement> relations = new ArrayList<>();
+        // parents that got new children and the model, if roots were added
+        Set<SNode> reorderedParents = new LinkedHashSet<>();
+        SModel reorderedModel = null;
+        BareNodeWriter nodeWriter = myNodeWriter;
+        for (Map.Entry<SNode, SContainmentLink> entry : added.entrySet()) {
+            SNode node = entry.getKey();
+            if (node.getModel() == null || isInside(node.getParent(), newNodes)) {
+                continue;
+            }
+            if (newNodes.contains(node)) {
+                Iterator<CypherStatement> statements = entry.getValue() == null ? nodeWriter.iterateRoot(node) : nodeWriter.iterateNode(node);
+                for (Iterator<CypherStatement> it = statements; it.hasNext(); ) {
+                    CypherStatement statement = it.next();
+                    (statement.needsNodesToBeCreated() ? relations : nodes).add(statement);
+                }
+            }
+            if (entry.getValue() == null) {
+                reorderedModel = node.getModel();
+                relations.add(new CreateRootRelation(node, myModelReference, indexOf(node, reorderedModel.getRootNodes())));
+            } else {
+                reorderedParents.add(node.getParent());
+                relations.add(new CreateChildReleation(node.getParent(), node, entry.getValue(), indexOf(node, node.getParent().getChildren())));
+            }
+        }
+
+        ArrayList<CypherStatement> updates = new ArrayList<>();
+        for (Map.Entry<SNode, Set<SProperty>> entry : changes.getChangedProperties().entrySet()) {
+            if (isUnchanged(entry.getKey(), newNodes)) {
+                updates.add(new UpdateProperties(entry.getKey(), entry.getValue(), myRegistry, nodeWriter));
+            }
+        }
+        for (Map.Entry<SNode, Set<SReferenceLink>> entry : changes.getChangedReferences().entrySet()) {
+            SNode node = entry.getKey();
+            if (!isUnchanged(node, newNodes)) {
+                continue;
+            }
+            for (SReferenceLink link : entry.getValue()) {
+                updates.add(new DeleteReference(node, link));
+                SReference reference = node.getReference(link);
+                if (reference != null) {
+                    relations.add(new CreateReference(reference));
+                }
+            }
+        }
+
+        ArrayList<CypherStatement> result = new ArrayList<>(removals);
+        result.addAll(NodeBatchWriter.write(myBatchSize, nodes));
+        result.addAll(updates);
+        result.addAll(RelationBatchWriter.write(myBatchSize, relations));
+        // new children were given their current position, siblings after them have to move
+        for (SNode parent : reorderedParents) {
+            result.add(UpdateChildOrder.children(parent));
+        }
+        if (reorderedModel != null) {
+            result.add(UpdateChildOrder.roots(myModelReference, reorderedModel));
+        }
+        for (SNode root : changes.getChangedRoots()) {
+            if (root.getModel() != null && root.getParent() == null && !newNodes.contains(root)) {
+                result.add(UpdateDigest.root(myModelReference, root));
+            }
+        }
+        if (!nodes.isEmpty()) {
+            // other models may have been referring to the new nodes before
+            result.add(new PromoteProxies(NodeUtils.getModelId(myModelReference.getModelId())));
+        }
+        return result;
+    }
+
+    private static int indexOf(SNode node, Iterable<? extends SNode> siblings) {
+        int index = 0;
+        for (SNode sibling : siblings) {
+            if (sibling == node) {
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the node still exists in the database and is not going to be written anew anyway
+     */
+    private static boolean isUnchanged(SNode node, Set<SNode> newNodes) {
+        return node.getModel() != null && !isInside(node, newNodes);
+    }
+
+    private static boolean isInside(SNode node, Set<SNode> subtrees) {
+        for (SNode n = node; n != null; n = n.getParent()) {
+            if (subtrees.contains(n)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
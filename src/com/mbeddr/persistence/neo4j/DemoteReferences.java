@@ -0,0 +1,51 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.neo4j.driver.v1.Statement;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Turns the REFERENCE relations nodes outside of a subtree about to be deleted have into it into relations to
+ * {@code SReferenceProxy} nodes, so that the references survive the deletion. {@link PromoteProxies} turns them
+ * back once the nodes are written again. This includes nodes of the same model, the subtree may be written anew
+ * because one of its nodes was moved into a new one.
+ */
+public class DemoteReferences implements CypherStatement {
+    private static final String DEMOTE =
+            "WITH r, s, n.ModelId AS model, n.NodeId AS target " +
+            "MERGE (proxy:SReferenceProxy {Key : " + NodeUtils.NODE_KEY + "}) ON CREATE SET proxy.ModelId = model, proxy.NodeId = target " +
+            "CREATE (s)-[:REFERENCE {Id : r.Id}]->(proxy) DELETE r";
+    private static final String DEMOTE_SUBTREE =
+            "MATCH (root:SNode) WHERE root.Key = {id} " +
+            "MATCH (root)-[:CONTAINMENT*0..]->(n:SNode) WITH collect(n) AS subtree UNWIND subtree AS n " +
+            "MATCH (n)<-[r:REFERENCE]-(s:SNode) WHERE NOT s IN subtree " + DEMOTE;
+    private static final String DEMOTE_NODES =
+            "UNWIND {ids} AS id MATCH (n:SNode)<-[r:REFERENCE]-(s:SNode) WHERE id(n) = id AND s.ModelId <> n.ModelId " + DEMOTE;
+
+    private final SModelReference modelReference;
+    private final SNode node;
+
+    public DemoteReferences(SModelReference modelReference, SNode node) {
+        this.modelReference = modelReference;
+        this.node = node;
+    }
+
+    /**
+     * Same for references of other models to the nodes with the given internal ids, to be run in the transaction deleting them: a reference another
+     * model creates in the meantime would otherwise go to a node that is about to be deleted
+     */
+    public static Statement forNodes(List<Object> ids) {
+        return new Statement(DEMOTE_NODES, Collections.singletonMap("ids", ids));
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("id", NodeUtils.getNodeKey(modelReference, node.getNodeId()));
+        return new Statement(DEMOTE_SUBTREE, values);
+    }
+}
@@ -0,0 +1,31 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.neo4j.driver.v1.Statement;
+
+import java.util.HashMap;
+
+/**
+ * Removes the CONTAINMENT or ROOT relation pointing to a node, used when a node is moved to another parent.
+ */
+public class DetachNode implements CypherStatement {
+
+    private final SModelReference modelReference;
+    private final SNode node;
+
+    public DetachNode(SModelReference modelReference, SNode node) {
+        this.modelReference = modelReference;
+        this.node = node;
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("id", NodeUtils.getNodeKey(modelReference, node.getNodeId()));
+
+        return new Statement(
+                "MATCH ()-[r:CONTAINMENT|ROOT]->(n:SNode) WHERE n.Key = {id} DELETE r",
+                values);
+    }
+}
@@ -0,0 +1,204 @@
+package com.mbeddr.persistence.neo4j;
+
+import jetbrains.mps.extapi.model.SModelData;
+import jetbrains.mps.smodel.InterfaceSNode;
+import jetbrains.mps.smodel.StaticReference;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.mps.openapi.language.SConcept;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.language.SReferenceLink;
+import org.jetbrains.mps.openapi.model.SModelId;
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.jetbrains.mps.openapi.persistence.PersistenceFacade;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Statement;
+import org.neo4j.driver.v1.Value;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads the nodes of a model back from the graph written by {@link BareNodeWriter}: one query each for the nodes,
+ * the containment relations, the roots and the references, all starting at the SModel node.
+ * Results are streamed, columns are read by their position in the RETURN clause. Concepts and properties are resolved
+ * once a result is closed: the {@link MetaRegistry} may have to query for ids it hasn't seen, and a query of its own
+ * while the result holds a session could wait for a session forever.
+ * @see BareNodeReader
+ */
+public class GraphModelReader {
+    private static final String MODEL_NODES =
+            "MATCH (m:SModel)-[:ROOT]->(:SNode)-[:CONTAINMENT*0..]->(n:SNode) WHERE m.Id = {modelId} ";
+
+    // null for targets in the model itself, nodes of other models and proxies know their model
+    private static final String TARGET_MODEL = "CASE WHEN target.ModelId = {modelId} THEN null ELSE target.ModelId END AS model";
+
+    // the node itself only if its properties are not packed, the driver builds a map of all keys for it
+    private static final String NODE_COLUMNS = "n.NodeId, n." + MetaRegistry.CONCEPT + ", n." + MetaRegistry.LEGACY_CONCEPT +
+            ", n." + PackedProperties.KEY + ", CASE WHEN n." + PackedProperties.KEY + " IS NULL THEN n END";
+
+    private static final String QUERY_NODES = MODEL_NODES + "RETURN " + NODE_COLUMNS;
+    private static final String QUERY_CHILDREN = MODEL_NODES +
+            "MATCH (n)-[c:CONTAINMENT]->(child:SNode) RETURN n.NodeId AS parent, child.NodeId AS child, c.Id AS link ORDER BY c.Index";
+    private static final String QUERY_ROOTS =
+            "MATCH (m:SModel)-[r:ROOT]->(n:SNode) WHERE m.Id = {modelId} RETURN n.NodeId AS id ORDER BY r.Index";
+    private static final String QUERY_REFERENCES = MODEL_NODES +
+            "MATCH (n)-[r:REFERENCE]->(target) RETURN n.NodeId AS source, r.Id AS link, target.NodeId AS target, " + TARGET_MODEL;
+
+    private static final String QUERY_ROOT_HEADERS =
+            "MATCH (m:SModel)-[r:ROOT]->(n:SNode) WHERE m.Id = {modelId} WITH n, r.Index AS index " +
+            "OPTIONAL MATCH (n)-[c:CONTAINMENT]->() WITH n, index, collect(DISTINCT c.Id) AS links " +
+            "RETURN " + NODE_COLUMNS + ", links ORDER BY index";
+    private static final String QUERY_ROOT_REFERENCES =
+            "MATCH (m:SModel)-[:ROOT]->(n:SNode)-[r:REFERENCE]->(target) WHERE m.Id = {modelId} " +
+            "RETURN n.NodeId AS source, r.Id AS link, target.NodeId AS target, " + TARGET_MODEL;
+
+    private final BoltCypherExecutor myExecutor;
+    private final SModelReference myModelReference;
+    private final Map<String, Object> myParams;
+    private final MetaRegistry myRegistry;
+    private final Map<Object, SNode> myNodes = new HashMap<>();
+
+    public GraphModelReader(@NotNull BoltCypherExecutor executor, @NotNull SModelReference modelReference) {
+        myExecutor = executor;
+        myRegistry = MetaRegistry.get(executor);
+        myModelReference = modelReference;
+        myParams = Collections.singletonMap("modelId", NodeUtils.getModelId(modelReference.getModelId()));
+    }
+
+    /**
+     * Read all nodes of the model, without creating them
+     */
+    public ModelSnapshot readSnapshot() {
+        ModelSnapshot snapshot = new ModelSnapshot();
+        List<NodeRow> nodes;
+        try (Stream<NodeRow> rows = myExecutor.stream(new Statement(QUERY_NODES, myParams), r -> new NodeRow(r, Collections.emptyList()))) {
+            nodes = rows.collect(Collectors.toList());
+        }
+        for (NodeRow n : nodes) {
+            List<SProperty> properties = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            byte[] userObjects = readProperties(n, properties, values);
+            snapshot.addNode(n.id, readConcept(n), properties, values, userObjects);
+        }
+        try (Stream<Record> rows = myExecutor.stream(new Statement(QUERY_CHILDREN, myParams), r -> r)) {
+            rows.forEach(row -> snapshot.addChild(row.get(0).asObject(), row.get(1).asObject(), row.get(2).asString()));
+        }
+        try (Stream<Record> rows = myExecutor.stream(new Statement(QUERY_REFERENCES, myParams), r -> r)) {
+            rows.forEach(row -> snapshot.addReference(row.get(0).asObject(), row.get(1).asString(), row.get(2).asObject(),
+                    row.get(3).isNull() ? null : row.get(3).asObject()));
+        }
+        try (Stream<Object> roots = myExecutor.stream(new Statement(QUERY_ROOTS, myParams), r -> r.get(0).asObject())) {
+            roots.forEach(snapshot::addRoot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Read only the roots of the model with their properties and references, register them into supplied ModelData.
+     * Children are not read, the roles they are in are marked as skipped so that accessing them makes MPS load the
+     * model completely.
+     */
+    public void readRootsInto(SModelData modelData) {
+        List<NodeRow> roots;
+        try (Stream<NodeRow> rows = myExecutor.stream(new Statement(QUERY_ROOT_HEADERS, myParams),
+                r -> new NodeRow(r, r.get(5).asList(Value::asString)))) {
+            roots = rows.collect(Collectors.toList());
+        }
+        for (NodeRow row : roots) {
+            InterfaceSNode root = (InterfaceSNode) readNode(row, true);
+            for (String link : row.links) {
+                root.skipRole(NodeUtils.toContainmentLink(link));
+            }
+            modelData.addRootNode(root);
+        }
+        readReferences(QUERY_ROOT_REFERENCES);
+    }
+
+    private SNode readNode(NodeRow n, boolean interfaceNode) {
+        Object id = n.id;
+        SConcept concept = readConcept(n);
+        jetbrains.mps.smodel.SNode node = interfaceNode
+                ? new InterfaceSNode(concept, NodeUtils.toNodeId(id))
+                : new jetbrains.mps.smodel.SNode(concept, NodeUtils.toNodeId(id));
+        List<SProperty> properties = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        byte[] userObjects = readProperties(n, properties, values);
+        for (int i = 0; i < properties.size(); i++) {
+            node.setProperty(properties.get(i), values.get(i));
+        }
+        if (userObjects != null) {
+            PackedProperties.readUserObjects(myModelReference, userObjects, node);
+        }
+        myNodes.put(id, node);
+        return node;
+    }
+
+    /**
+     * @return user objects of the node if they were packed with the properties
+     */
+    private byte[] readProperties(NodeRow n, List<SProperty> properties, List<String> values) {
+        if (n.packed != null) {
+            return PackedProperties.unpack(n.packed, myRegistry, properties, values);
+        }
+        for (Map.Entry<String, Object> entry : n.keys.entrySet()) {
+            SProperty property = myRegistry.toProperty(entry.getKey());
+            if (property != null) {
+                properties.add(property);
+                values.add((String) entry.getValue());
+            }
+        }
+        return null;
+    }
+
+    private SConcept readConcept(NodeRow n) {
+        return myRegistry.toConcept(n.conceptId, n.conceptId == null ? n.legacyConcept : null);
+    }
+
+    private void readReferences(String query) {
+        try (Stream<Record> rows = myExecutor.stream(new Statement(query, myParams), r -> r)) {
+            rows.forEach(row -> {
+                SNode source = myNodes.get(row.get(0).asObject());
+                SReferenceLink link = NodeUtils.toReferenceLink(row.get(1).asString());
+                Value targetModel = row.get(3);
+                SModelReference modelRef = targetModel.isNull() ? myModelReference : toModelReference(targetModel.asObject());
+                source.setReference(link, new StaticReference(link, source, modelRef, NodeUtils.toNodeId(row.get(2).asObject()), null));
+            });
+        }
+    }
+
+    /*package*/ static SModelReference toModelReference(Object modelId) {
+        SModelId id = NodeUtils.toModelId(modelId);
+        return PersistenceFacade.getInstance().createModelReference(null, id, "");
+    }
+
+    /**
+     * Values of a node as they came from the database, taken from the {@link #NODE_COLUMNS} before the result is closed
+     */
+    private static final class NodeRow {
+        final Object id;
+        final Object conceptId;
+        final String legacyConcept;
+        final String packed;
+        // all keys of the node, only kept if the properties are not packed
+        final Map<String, Object> keys;
+        // containment links of a root read without its children
+        final List<String> links;
+
+        NodeRow(Record r, List<String> links) {
+            id = r.get(0).asObject();
+            Value conceptId = r.get(1);
+            this.conceptId = conceptId.isNull() ? null : conceptId.asObject();
+            legacyConcept = conceptId.isNull() ? r.get(2).asString() : null;
+            Value packed = r.get(3);
+            this.packed = packed.isNull() ? null : packed.asString();
+            keys = packed.isNull() ? r.get(4).asNode().asMap() : Collections.emptyMap();
+            this.links = links;
+        }
+    }
+}
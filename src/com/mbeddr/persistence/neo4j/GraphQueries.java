@@ -0,0 +1,95 @@
+package com.mbeddr.persistence.neo4j;
+
+import jetbrains.mps.smodel.ConceptDescendantsCache;
+import jetbrains.mps.smodel.SModelHeader;
+import jetbrains.mps.smodel.SNodePointer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.mps.openapi.language.SAbstractConcept;
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNodeReference;
+import org.neo4j.driver.v1.Record;
+import org.neo4j.driver.v1.Statement;
+import org.neo4j.driver.v1.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Questions about the nodes of all models in a database, answered by the database without loading any model.
+ * The results are returned as streams that have to be closed.
+ */
+public final class GraphQueries {
+    private static final String QUERY_INSTANCES =
+            "MATCH (n:SNode) WHERE n." + MetaRegistry.CONCEPT + " IN {concepts} RETURN n.ModelId, n.NodeId";
+    // a target is either saved or stands in as a proxy, both are found by the unique key
+    private static final String QUERY_USAGES =
+            "OPTIONAL MATCH (t:SNode) WHERE t.Key = {key} " +
+            "OPTIONAL MATCH (p:SReferenceProxy) WHERE p.Key = {key} " +
+            "WITH [x IN [t, p] WHERE x IS NOT NULL] AS targets UNWIND targets AS target " +
+            "MATCH (target)<-[:REFERENCE]-(n:SNode) " +
+            "WITH n.ModelId AS model, collect(DISTINCT n.NodeId) AS nodes " +
+            "MATCH (m:SModel) WHERE m.Id = model RETURN m, nodes ORDER BY model";
+
+    private GraphQueries() {
+    }
+
+    /**
+     * Nodes of the concept in any model of the database, found through the index on the concept id. Rows are
+     * streamed as the database finds them, in no particular order. The headers of the models are read before, with a
+     * single query, the stream holds a session and must not need another one.
+     * @param includeSubConcepts instances of concepts extending the concept are found as well
+     */
+    @NotNull
+    public static Stream<SNodeReference> instancesOf(@NotNull BoltCypherExecutor executor, @NotNull SAbstractConcept concept, boolean includeSubConcepts) {
+        // nodes saved before the concept id was indexed are migrated with the schema
+        SchemaManager.ensureSchema(executor);
+        Set<SAbstractConcept> concepts = new LinkedHashSet<>();
+        concepts.add(concept);
+        if (includeSubConcepts) {
+            concepts.addAll(ConceptDescendantsCache.getInstance().getDescendants(concept));
+        }
+        List<Integer> conceptIds = MetaRegistry.get(executor).findConceptIds(concepts);
+        if (conceptIds.isEmpty()) {
+            return Stream.empty();
+        }
+        Map<Object, SModelReference> models = new HashMap<>();
+        for (SModelHeader header : Neo4JPersistence.readHeaders(executor)) {
+            models.put(NodeUtils.getModelId(header.getModelReference().getModelId()), header.getModelReference());
+        }
+        Statement query = new Statement(QUERY_INSTANCES, Collections.singletonMap("concepts", conceptIds));
+        return executor.stream(query, row -> new SNodePointer(models.computeIfAbsent(row.get(0).asObject(), GraphModelReader::toModelReference),
+                NodeUtils.toNodeId(row.get(1).asObject())));
+    }
+
+    /**
+     * Nodes referring to the target, directly or through its proxy, found by following the incoming references of
+     * the target only. The usages are collected by the database and returned grouped by model.
+     */
+    @NotNull
+    public static Stream<SNodeReference> findUsages(@NotNull BoltCypherExecutor executor, @NotNull SNodeReference target) {
+        SModelReference model = target.getModelReference();
+        if (model == null || target.getNodeId() == null) {
+            return Stream.empty();
+        }
+        Statement query = new Statement(QUERY_USAGES, Collections.singletonMap("key", NodeUtils.getNodeKey(model, target.getNodeId())));
+        return executor.stream(query, GraphQueries::toNodeReferences).flatMap(List::stream);
+    }
+
+    /**
+     * Decodes rows of the SModel node and the ids of its nodes
+     */
+    /*package*/ static List<SNodeReference> toNodeReferences(Record row) {
+        SModelReference model = Neo4JPersistence.toModelReference(row.get(0).asMap());
+        List<SNodeReference> result = new ArrayList<>();
+        for (Value nodeId : row.get(1).values()) {
+            result.add(new SNodePointer(model, NodeUtils.toNodeId(nodeId.asObject())));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+package com.mbeddr.persistence.neo4j;
+
+import jetbrains.mps.smodel.SModelHeader;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Headers of the models in the databases, shared by the whole process, keyed by the
+ * {@link BoltCypherExecutor#getEndpointKey() endpoint} of the database, model id and the
+ * {@link MergeModel#REVISION revision} of the SModel node they were read or written at. An entry is only replaced by
+ * a header of a later revision, so that a read overtaken by a save can't bring back an outdated header, and only
+ * served for the revision it has, so that changes made by other processes are seen.
+ */
+public final class HeaderCache {
+    private static final Map<Object, Entry> entries = new ConcurrentHashMap<>();
+
+    private HeaderCache() {
+    }
+
+    /**
+     * @return copy of the cached header, null if there is none for the given revision
+     */
+    @Nullable
+    public static SModelHeader get(@NotNull BoltCypherExecutor executor, @NotNull Object modelId, long revision) {
+        Entry entry = entries.get(key(executor, modelId));
+        return entry == null || entry.revision != revision ? null : entry.header.createCopy();
+    }
+
+    public static void put(@NotNull BoltCypherExecutor executor, @NotNull Object modelId, long revision, @NotNull SModelHeader header) {
+        Entry update = new Entry(revision, header.createCopy());
+        entries.merge(key(executor, modelId), update, (cached, next) -> next.revision >= cached.revision ? next : cached);
+    }
+
+    public static void invalidate(@NotNull BoltCypherExecutor executor, @NotNull Object modelId) {
+        entries.remove(key(executor, modelId));
+    }
+
+    public static void clear() {
+        entries.clear();
+    }
+
+    private static Object key(BoltCypherExecutor executor, Object modelId) {
+        return Arrays.asList(executor.getEndpointKey(), modelId);
+    }
+
+    private static final class Entry {
+        final long revision;
+        final SModelHeader header;
+
+        Entry(long revision, SModelHeader header) {
+            this.revision = revision;
+            this.header = header;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.neo4j.driver.v1.Statement;
+
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Writes the header of a model to its SModel node, replacing the properties it had, and increments the revision
+ * of the node. The new revision is returned as {@code revision}.
+ * <p>
+ * A save that writes the content in several transactions writes the header with {@link #beginSave()} first, which
+ * marks the node as {@link #SAVING} and keeps the revision, and increments the revision with {@link #finishSave(Object)}
+ * once all of the content is written.
+ */
+public class MergeModel implements CypherStatement {
+    public static final String REVISION = "Revision";
+    public static final String SAVING = "Saving";
+
+    private final CreateNode record;
+    private final boolean begin;
+
+    public MergeModel(CreateNode record) {
+        this(record, false);
+    }
+
+    private MergeModel(CreateNode record, boolean begin) {
+        this.record = record;
+        this.begin = begin;
+    }
+
+    /**
+     * Same header, written without incrementing the revision, the node is marked as being saved instead
+     */
+    public MergeModel beginSave() {
+        return new MergeModel(record, true);
+    }
+
+    /**
+     * Increments the revision of a model written after {@link #beginSave()}
+     */
+    public static Statement finishSave(Object modelId) {
+        return new Statement("MATCH (m:SModel) WHERE m.Id = {id} SET m." + REVISION + " = coalesce(m." + REVISION + ", 0) + 1 " +
+                "REMOVE m." + SAVING + " RETURN m." + REVISION + " AS revision", Collections.singletonMap("id", modelId));
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> properties = new HashMap<>();
+        for (CypherAttribute attr : record.getAttributes()) {
+            properties.put(attr.getKey(), attr.getValue());
+        }
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("id", properties.get("Id"));
+        values.put("properties", properties);
+        String update = begin
+                ? "m." + REVISION + " = revision, m." + SAVING + " = true"
+                : "m." + REVISION + " = revision + 1";
+        return new Statement("MERGE (m:SModel {Id : {id}}) WITH m, coalesce(m." + REVISION + ", 0) AS revision " +
+                "SET m = {properties}, " + update + " RETURN m." + REVISION + " AS revision", values);
+    }
+}
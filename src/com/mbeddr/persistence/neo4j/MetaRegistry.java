@@ -0,0 +1,261 @@
+package com.mbeddr.persistence.neo4j;
+
+import jetbrains.mps.smodel.adapter.ids.MetaIdHelper;
+import jetbrains.mps.smodel.adapter.ids.SConceptId;
+import jetbrains.mps.smodel.adapter.ids.SPropertyId;
+import jetbrains.mps.smodel.adapter.structure.MetaAdapterFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.mps.openapi.language.SAbstractConcept;
+import org.jetbrains.mps.openapi.language.SConcept;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.neo4j.driver.v1.Statement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Concepts and properties of a database, each stored once as a {@code MetaConcept} or {@code MetaProperty} node with
+ * a short numeric id. SNodes refer to their concept by {@link #CONCEPT} and store properties under
+ * {@code P<id>} keys instead of the serialized meta ids, the same way the registry of the binary persistence
+ * saves repeating them for every node.
+ * <p>
+ * Ids are given out by a counter on the {@code MetaRegistry} node, so they are the same for all clients of a
+ * database, and never change once given. Nodes written before the registry still have the serialized ids, both forms
+ * are read.
+ */
+public final class MetaRegistry {
+    public static final String CONCEPT = "ConceptId";
+    /**
+     * Key of the serialized concept id on nodes written before the registry
+     */
+    public static final String LEGACY_CONCEPT = "concept";
+    private static final char PROPERTY_PREFIX = 'P';
+
+    private static final String CONCEPT_LABEL = "MetaConcept";
+    private static final String PROPERTY_LABEL = "MetaProperty";
+    private static final String QUERY_ENTRIES = "MATCH (e:%s) RETURN e.Id AS id, e.Name AS name";
+    // the lock is taken by writing the registry node, before its counter is read
+    private static final String ALLOCATE_ENTRIES =
+            "MATCH (r:MetaRegistry) SET r.Locked = true WITH r UNWIND {names} AS name " +
+            "MERGE (e:%s {Name: name}) ON CREATE SET e.Id = r.Next, r.Next = r.Next + 1 " +
+            "RETURN e.Id AS id, e.Name AS name";
+
+    private static final Map<BoltCypherExecutor, MetaRegistry> registries = new ConcurrentHashMap<>();
+
+    private final BoltCypherExecutor executor;
+    // keyed by the meta objects, so that writing a node needs neither serialized ids nor new key strings
+    private final Map<SConcept, Integer> conceptIds = new ConcurrentHashMap<>();
+    private final Map<SProperty, Integer> propertyIds = new ConcurrentHashMap<>();
+    private final Map<SProperty, String> propertyKeys = new ConcurrentHashMap<>();
+    private final Map<String, Integer> conceptIdsByName = new ConcurrentHashMap<>();
+    private final Map<Integer, SConcept> concepts = new ConcurrentHashMap<>();
+    private final Map<Integer, SProperty> properties = new ConcurrentHashMap<>();
+
+    private MetaRegistry(BoltCypherExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Registry of the database the executor connects to, entries are read once they are needed
+     */
+    public static MetaRegistry get(@NotNull BoltCypherExecutor executor) {
+        return registries.computeIfAbsent(executor, MetaRegistry::new);
+    }
+
+    /**
+     * Forget the registry of the executor, e.g. once it's closed
+     */
+    public static void forget(BoltCypherExecutor executor) {
+        registries.remove(executor);
+    }
+
+    public boolean isKnown(@NotNull SConcept concept) {
+        return conceptIds.containsKey(concept);
+    }
+
+    public boolean isKnown(@NotNull SProperty property) {
+        return propertyIds.containsKey(property);
+    }
+
+    /**
+     * Gives ids to those of the concepts and properties that have none yet, with a single query for each kind.
+     * Meant to be called by the save task, before its statements are created.
+     */
+    public void register(@NotNull Collection<SConcept> newConcepts, @NotNull Collection<SProperty> newProperties) {
+        Set<String> conceptNames = new LinkedHashSet<>();
+        for (SConcept concept : newConcepts) {
+            if (!isKnown(concept)) {
+                conceptNames.add(MetaIdHelper.getConcept(concept).serialize());
+            }
+        }
+        Set<String> propertyNames = new LinkedHashSet<>();
+        for (SProperty property : newProperties) {
+            if (!isKnown(property)) {
+                propertyNames.add(MetaIdHelper.getProperty(property).serialize());
+            }
+        }
+        allocate(CONCEPT_LABEL, conceptNames);
+        allocate(PROPERTY_LABEL, propertyNames);
+    }
+
+    /**
+     * Concepts missing from the registry are given an id with a query of their own, see {@link #register}
+     */
+    public int getConceptId(@NotNull SConcept concept) {
+        Integer id = conceptIds.get(concept);
+        if (id == null) {
+            register(Collections.singleton(concept), Collections.emptySet());
+            id = conceptIds.get(concept);
+        }
+        return id;
+    }
+
+    public int getPropertyId(@NotNull SProperty property) {
+        Integer id = propertyIds.get(property);
+        if (id == null) {
+            register(Collections.emptySet(), Collections.singleton(property));
+            id = propertyIds.get(property);
+        }
+        return id;
+    }
+
+    /**
+     * @return the key the property is stored with on SNodes
+     */
+    public String getPropertyKey(@NotNull SProperty property) {
+        String key = propertyKeys.get(property);
+        if (key == null) {
+            getPropertyId(property);
+            key = propertyKeys.get(property);
+        }
+        return key;
+    }
+
+    /**
+     * Ids of those concepts that have ever been saved to the database, the others have no instances
+     */
+    public List<Integer> findConceptIds(@NotNull Collection<? extends SAbstractConcept> concepts) {
+        List<Integer> result = new ArrayList<>(concepts.size());
+        boolean reloaded = false;
+        for (SAbstractConcept concept : concepts) {
+            String name = MetaIdHelper.getConcept(concept).serialize();
+            if (!conceptIdsByName.containsKey(name) && !reloaded) {
+                // saved by someone else in the meantime
+                load(CONCEPT_LABEL);
+                reloaded = true;
+            }
+            Integer id = conceptIdsByName.get(name);
+            if (id != null) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param conceptId value of {@link #CONCEPT} or null for nodes written before the registry
+     * @param legacyConcept value of the serialized concept id these nodes have instead
+     */
+    public SConcept toConcept(Object conceptId, String legacyConcept) {
+        if (conceptId == null) {
+            return NodeUtils.toConcept(legacyConcept);
+        }
+        int id = ((Number) conceptId).intValue();
+        SConcept concept = concepts.get(id);
+        if (concept == null) {
+            load(CONCEPT_LABEL);
+            concept = concepts.get(id);
+            if (concept == null) {
+                throw new IllegalStateException("Unknown concept id " + id);
+            }
+        }
+        return concept;
+    }
+
+    /**
+     * @return the property stored with the given SNode key, null if the key is not a property
+     */
+    public SProperty toProperty(String key) {
+        if (!isPropertyKey(key)) {
+            return NodeUtils.toProperty(key);
+        }
+        return toProperty(Integer.parseInt(key.substring(1)));
+    }
+
+    public SProperty toProperty(int id) {
+        SProperty property = properties.get(id);
+        if (property == null) {
+            load(PROPERTY_LABEL);
+            property = properties.get(id);
+            if (property == null) {
+                throw new IllegalStateException("Unknown property id " + id);
+            }
+        }
+        return property;
+    }
+
+    private static boolean isPropertyKey(String key) {
+        if (key.length() < 2 || key.charAt(0) != PROPERTY_PREFIX) {
+            return false;
+        }
+        for (int i = 1; i < key.length(); i++) {
+            if (!Character.isDigit(key.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void allocate(String label, Collection<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        SchemaManager.ensureSchema(executor);
+        read(allocateStatement(label, names), label);
+    }
+
+    /**
+     * Gives ids to the serialized concept ids that have none yet, for migrating nodes written before the registry
+     */
+    /*package*/ static Statement allocateConcepts(Collection<String> names) {
+        return allocateStatement(CONCEPT_LABEL, names);
+    }
+
+    private static Statement allocateStatement(String label, Collection<String> names) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("names", names.toArray(new String[names.size()]));
+        return new Statement(String.format(ALLOCATE_ENTRIES, label), params);
+    }
+
+    private void load(String label) {
+        read(new Statement(String.format(QUERY_ENTRIES, label)), label);
+    }
+
+    private void read(Statement statement, String label) {
+        try (Stream<Object[]> rows = executor.stream(statement, r -> new Object[]{r.get(0).asInt(), r.get(1).asString()})) {
+            rows.forEach(row -> add(label, (Integer) row[0], (String) row[1]));
+        }
+    }
+
+    private void add(String label, int id, String name) {
+        if (CONCEPT_LABEL.equals(label)) {
+            SConcept concept = MetaAdapterFactory.getConcept(SConceptId.deserialize(name), name);
+            concepts.put(id, concept);
+            conceptIdsByName.put(name, id);
+            conceptIds.put(concept, id);
+        } else {
+            SProperty property = MetaAdapterFactory.getProperty(SPropertyId.deserialize(name), name);
+            properties.put(id, property);
+            propertyKeys.put(property, PROPERTY_PREFIX + Integer.toString(id));
+            propertyIds.put(property, id);
+        }
+    }
+}
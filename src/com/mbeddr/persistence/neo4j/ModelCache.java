@@ -0,0 +1,101 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Snapshots of the models read in this process, keyed by the {@link BoltCypherExecutor#getEndpointKey() endpoint} of
+ * the database and model id. An entry is only used while the
+ * {@link MergeModel#REVISION revision} of the SModel node is the one it was read at, so a save by anyone makes
+ * the next read go to the database again. The cache holds at most {@code neo4j.persistence.modelCacheSize} nodes,
+ * the least recently used models are evicted first.
+ */
+public final class ModelCache {
+    public static final int DEFAULT_CAPACITY = 1000000;
+
+    private static final ModelCache INSTANCE = new ModelCache(Integer.getInteger("neo4j.persistence.modelCacheSize", DEFAULT_CAPACITY));
+
+    private final long capacity;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long hits;
+    private long misses;
+
+    public ModelCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public static ModelCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the snapshot if it was read at the given revision, null otherwise
+     */
+    @Nullable
+    public synchronized ModelSnapshot get(@NotNull BoltCypherExecutor executor, @NotNull Object modelId, long revision) {
+        Entry entry = entries.get(key(executor, modelId));
+        if (entry == null || entry.revision != revision) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.snapshot;
+    }
+
+    public synchronized void put(@NotNull BoltCypherExecutor executor, @NotNull Object modelId, long revision, @NotNull ModelSnapshot snapshot) {
+        if (snapshot.getNodeCount() > capacity) {
+            return;
+        }
+        Object key = key(executor, modelId);
+        remove(key);
+        entries.put(key, new Entry(revision, snapshot));
+        size += snapshot.getNodeCount();
+        for (Iterator<Entry> it = entries.values().iterator(); size > capacity && it.hasNext(); ) {
+            size -= it.next().snapshot.getNodeCount();
+            it.remove();
+        }
+    }
+
+    public synchronized void invalidate(@NotNull BoltCypherExecutor executor, @NotNull Object modelId) {
+        remove(key(executor, modelId));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static Object key(BoltCypherExecutor executor, Object modelId) {
+        return Arrays.asList(executor.getEndpointKey(), modelId);
+    }
+
+    private void remove(Object key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.snapshot.getNodeCount();
+        }
+    }
+
+    private static final class Entry {
+        final long revision;
+        final ModelSnapshot snapshot;
+
+        Entry(long revision, ModelSnapshot snapshot) {
+            this.revision = revision;
+            this.snapshot = snapshot;
+        }
+    }
+}
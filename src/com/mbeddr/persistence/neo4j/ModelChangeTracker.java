@@ -0,0 +1,159 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.mps.openapi.event.SNodeAddEvent;
+import org.jetbrains.mps.openapi.event.SNodeRemoveEvent;
+import org.jetbrains.mps.openapi.event.SPropertyChangeEvent;
+import org.jetbrains.mps.openapi.event.SReferenceChangeEvent;
+import org.jetbrains.mps.openapi.language.SContainmentLink;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.language.SReferenceLink;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.jetbrains.mps.openapi.model.SNodeChangeListener;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the changes of a model since it was last written to (or read from) the database, so that the next
+ * save only has to send the difference. Until the model is in sync with the database, e.g. right after it was
+ * created or loaded from somewhere else, {@link #canSaveIncrementally(int)} answers false and a full save is needed.
+ */
+public class ModelChangeTracker implements SNodeChangeListener {
+
+    private boolean inSync = false;
+    private final Map<SNode, SContainmentLink> addedNodes = new LinkedHashMap<>();
+    private final Set<SNode> removedNodes = new LinkedHashSet<>();
+    private final Map<SNode, Set<SProperty>> changedProperties = new LinkedHashMap<>();
+    private final Map<SNode, Set<SReferenceLink>> changedReferences = new LinkedHashMap<>();
+    // roots with changes inside, their digest has to be computed anew
+    private final Set<SNode> changedRoots = new LinkedHashSet<>();
+
+    @Override
+    public synchronized void propertyChanged(@NotNull SPropertyChangeEvent event) {
+        changedProperties.computeIfAbsent(event.getNode(), n -> new LinkedHashSet<>()).add(event.getProperty());
+        changedRoots.add(event.getNode().getContainingRoot());
+    }
+
+    @Override
+    public synchronized void referenceChanged(@NotNull SReferenceChangeEvent event) {
+        changedReferences.computeIfAbsent(event.getNode(), n -> new LinkedHashSet<>()).add(event.getAssociationLink());
+        changedRoots.add(event.getNode().getContainingRoot());
+    }
+
+    @Override
+    public synchronized void nodeAdded(@NotNull SNodeAddEvent event) {
+        addedNodes.put(event.getChild(), event.isRoot() ? null : event.getAggregationLink());
+        if (!event.isRoot()) {
+            changedRoots.add(event.getParent().getContainingRoot());
+        }
+    }
+
+    @Override
+    public synchronized void nodeRemoved(@NotNull SNodeRemoveEvent event) {
+        SNode child = event.getChild();
+        if (!event.isRoot()) {
+            changedRoots.add(event.getParent().getContainingRoot());
+        }
+        if (addedNodes.containsKey(child)) {
+            // either never saved, or moved before (and then it is in removedNodes already)
+            addedNodes.remove(child);
+            return;
+        }
+        removedNodes.add(child);
+    }
+
+    /**
+     * @return true if the database content matches the state of the model at the last save and the number of
+     * recorded changes does not exceed the given limit.
+     */
+    public synchronized boolean canSaveIncrementally(int changeLimit) {
+        return inSync && getChangeCount() <= changeLimit;
+    }
+
+    public synchronized int getChangeCount() {
+        return addedNodes.size() + removedNodes.size() + changedProperties.size() + changedReferences.size();
+    }
+
+    /**
+     * Forget all recorded changes, the model was written or read completely.
+     */
+    public synchronized void markInSync() {
+        clear();
+        inSync = true;
+    }
+
+    /**
+     * The database content no longer matches the model (e.g. a save failed), the next save has to be a full one.
+     */
+    public synchronized void markOutOfSync() {
+        clear();
+        inSync = false;
+    }
+
+    /**
+     * Take a snapshot of the recorded changes and start recording anew.
+     */
+    public synchronized Changes takeChanges() {
+        Changes changes = new Changes(new LinkedHashMap<>(addedNodes), new LinkedHashSet<>(removedNodes),
+                new LinkedHashMap<>(changedProperties), new LinkedHashMap<>(changedReferences), new LinkedHashSet<>(changedRoots));
+        clear();
+        return changes;
+    }
+
+    private void clear() {
+        addedNodes.clear();
+        removedNodes.clear();
+        changedProperties.clear();
+        changedReferences.clear();
+        changedRoots.clear();
+    }
+
+    public static final class Changes {
+        private final Map<SNode, SContainmentLink> addedNodes;
+        private final Set<SNode> removedNodes;
+        private final Map<SNode, Set<SProperty>> changedProperties;
+        private final Map<SNode, Set<SReferenceLink>> changedReferences;
+        private final Set<SNode> changedRoots;
+
+        private Changes(Map<SNode, SContainmentLink> addedNodes, Set<SNode> removedNodes,
+                        Map<SNode, Set<SProperty>> changedProperties, Map<SNode, Set<SReferenceLink>> changedReferences,
+                        Set<SNode> changedRoots) {
+            this.addedNodes = addedNodes;
+            this.removedNodes = removedNodes;
+            this.changedProperties = changedProperties;
+            this.changedReferences = changedReferences;
+            this.changedRoots = changedRoots;
+        }
+
+        /**
+         * Nodes added to the model, with the containment link they were added with, or null for roots.
+         * Nodes that were removed before and added again (i.e. moved) are present in {@link #getRemovedNodes()} as well.
+         */
+        public Map<SNode, SContainmentLink> getAddedNodes() {
+            return Collections.unmodifiableMap(addedNodes);
+        }
+
+        public Set<SNode> getRemovedNodes() {
+            return Collections.unmodifiableSet(removedNodes);
+        }
+
+        public Map<SNode, Set<SProperty>> getChangedProperties() {
+            return Collections.unmodifiableMap(changedProperties);
+        }
+
+        public Map<SNode, Set<SReferenceLink>> getChangedReferences() {
+            return Collections.unmodifiableMap(changedReferences);
+        }
+
+        /**
+         * Roots that had nodes added, removed or changed inside. Some of them may have been removed since.
+         */
+        public Set<SNode> getChangedRoots() {
+            return Collections.unmodifiableSet(changedRoots);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.neo4j.driver.v1.Statement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Removes the content of a model from the database before it is written again: all nodes reachable from its SModel
+ * node through ROOT and CONTAINMENT relations and the reference proxies no other node points to anymore. References
+ * other models have to its nodes are turned into references to proxies, see {@link DemoteReferences}.
+ * The nodes are deleted in chunks of bounded size, each in a transaction of its own, so that the size of a
+ * transaction doesn't depend on the size of the model. References to the nodes of a chunk are demoted in the
+ * transaction deleting them, so that none created by a concurrent save of another model gets lost.
+ */
+public class ModelCleanup {
+    public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+    private static final RowDecoder<Object> ID = r -> r.get(0).asObject();
+    private static final String QUERY_NODES =
+            "MATCH (m:SModel)-[:ROOT]->(:SNode)-[:CONTAINMENT*0..]->(n:SNode) WHERE m.Id = {modelId} RETURN id(n) AS id";
+    private static final String QUERY_PROXIES =
+            "MATCH (m:SModel)-[:ROOT]->(:SNode)-[:CONTAINMENT*0..]->(:SNode)-[:REFERENCE]->(p:SReferenceProxy) " +
+            "WHERE m.Id = {modelId} RETURN DISTINCT id(p) AS id";
+    private static final String DELETE_NODES =
+            "UNWIND {ids} AS id MATCH (n:SNode) WHERE id(n) = id DETACH DELETE n";
+    private static final String DELETE_PROXIES =
+            "UNWIND {ids} AS id MATCH (p:SReferenceProxy) WHERE id(p) = id AND NOT ()-[:REFERENCE]->(p) DELETE p";
+
+    private final BoltCypherExecutor executor;
+    private final int chunkSize;
+
+    public ModelCleanup(BoltCypherExecutor executor, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Deletes the nodes of the model, but keeps the SModel node
+     */
+    public void deleteContent(Object modelId) {
+        Map<String, Object> params = Collections.singletonMap("modelId", modelId);
+        // proxies have to be collected while the nodes referencing them are still there
+        // both are read at the same time, in separate sessions
+        CompletionStage<List<Object>> pendingProxies = executor.queryAsync(new Statement(QUERY_PROXIES, params), ID);
+        List<Object> nodes = collectIds(new Statement(QUERY_NODES, params));
+        List<Object> proxies = BoltCypherExecutor.await(pendingProxies);
+
+        for (List<Object> chunk : chunks(nodes)) {
+            // references of other models are kept as proxies until the nodes are written again
+            executor.excecWithRetry(Arrays.asList(DemoteReferences.forNodes(chunk), deleteStatement(DELETE_NODES, chunk)));
+        }
+        for (List<Object> chunk : chunks(proxies)) {
+            executor.query(deleteStatement(DELETE_PROXIES, chunk));
+        }
+    }
+
+    private List<List<Object>> chunks(List<Object> ids) {
+        List<List<Object>> result = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += chunkSize) {
+            result.add(new ArrayList<>(ids.subList(start, Math.min(start + chunkSize, ids.size()))));
+        }
+        return result;
+    }
+
+    private static Statement deleteStatement(String query, List<Object> ids) {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("ids", ids);
+        return new Statement(query, values);
+    }
+
+    private List<Object> collectIds(Statement query) {
+        try (Stream<Object> ids = executor.stream(query, ID)) {
+            return ids.collect(Collectors.toList());
+        }
+    }
+}
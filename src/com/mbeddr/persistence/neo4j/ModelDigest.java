@@ -0,0 +1,165 @@
+package com.mbeddr.persistence.neo4j;
+
+import jetbrains.mps.extapi.model.GeneratableSModel;
+import jetbrains.mps.extapi.model.SModelData;
+import jetbrains.mps.smodel.DefaultSModel;
+import jetbrains.mps.smodel.SModelHeader;
+import jetbrains.mps.smodel.adapter.ids.MetaIdHelper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.jetbrains.mps.openapi.model.SNodeId;
+import org.jetbrains.mps.openapi.model.SReference;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Generation digests of a model: one for the header and one for the content of every root. They are computed when
+ * the model is saved and stored on the SModel node and the root nodes ({@link #PROPERTY}), so that the generator
+ * can tell what changed without loading the model.
+ */
+public final class ModelDigest {
+    public static final String PROPERTY = "Digest";
+
+    private ModelDigest() {
+    }
+
+    @NotNull
+    public static String header(@NotNull SModelData model) {
+        Builder builder = new Builder();
+        builder.write(String.valueOf(model.getReference()));
+        if (model instanceof DefaultSModel) {
+            SModelHeader header = ((DefaultSModel) model).getSModelHeader();
+            builder.write(String.valueOf(header.isDoNotGenerate()));
+            for (Map.Entry<String, String> property : new TreeMap<>(header.getOptionalProperties()).entrySet()) {
+                builder.write(property.getKey());
+                builder.write(property.getValue());
+            }
+        }
+        return builder.getResult();
+    }
+
+    /**
+     * Digest of everything in the subtree of the root, the tree is walked with an explicit stack
+     */
+    @NotNull
+    public static String root(@NotNull SNode root) {
+        Builder builder = new Builder();
+        Deque<SNode> nodes = new ArrayDeque<>();
+        nodes.push(root);
+        List<SNode> children = new ArrayList<>();
+        while (!nodes.isEmpty()) {
+            SNode node = nodes.pop();
+            builder.write(MetaIdHelper.getConcept(node.getConcept()).serialize());
+            builder.write(String.valueOf(NodeUtils.getNodeId(node.getNodeId())));
+            builder.write(node.getContainmentLink() == null ? "" : MetaIdHelper.getAggregation(node.getContainmentLink()).serialize());
+            TreeMap<String, String> properties = new TreeMap<>();
+            for (SProperty property : node.getProperties()) {
+                properties.put(NodeUtils.getPropertyKey(property), node.getProperty(property));
+            }
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                builder.write(property.getKey());
+                builder.write(property.getValue());
+            }
+            for (SReference reference : node.getReferences()) {
+                builder.write(MetaIdHelper.getAssociation(reference.getLink()).serialize());
+                builder.write(String.valueOf(reference.getTargetSModelReference()));
+                SNodeId target = reference.getTargetNodeId();
+                builder.write(target == null ? "" : target.toString());
+            }
+            // the end of a node, so that the same nodes in a different structure don't get the same digest
+            builder.write("");
+            for (SNode child : node.getChildren()) {
+                children.add(child);
+            }
+            for (int i = children.size() - 1; i >= 0; i--) {
+                nodes.push(children.get(i));
+            }
+            children.clear();
+        }
+        return builder.getResult();
+    }
+
+    /**
+     * @param roots digests of the roots by their node id, in the order of the roots
+     * @return digest map as expected by {@link GeneratableSModel}, the digest of the whole model is derived from the others
+     */
+    @NotNull
+    public static Map<String, String> toDigestMap(@NotNull String header, @NotNull Map<SNodeId, String> roots) {
+        Map<String, String> result = new LinkedHashMap<>();
+        Builder file = new Builder();
+        file.write(header);
+        result.put(GeneratableSModel.HEADER, header);
+        for (Map.Entry<SNodeId, String> root : roots.entrySet()) {
+            result.put(root.getKey().toString(), root.getValue());
+            file.write(root.getKey().toString());
+            file.write(root.getValue());
+        }
+        result.put(GeneratableSModel.FILE, file.getResult());
+        return result;
+    }
+
+    @NotNull
+    public static Map<String, String> compute(@NotNull SModelData model) {
+        Map<SNodeId, String> roots = new LinkedHashMap<>();
+        for (SNode root : model.getRootNodes()) {
+            roots.put(root.getNodeId(), root(root));
+        }
+        return toDigestMap(header(model), roots);
+    }
+
+    private static final class Builder {
+        private final MessageDigest myDigest;
+        private final DataOutputStream myOut;
+
+        Builder() {
+            try {
+                myDigest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            myOut = new DataOutputStream(new DigestOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    // only the digest is of interest
+                }
+            }, myDigest));
+        }
+
+        void write(@Nullable String value) {
+            try {
+                if (value == null) {
+                    myOut.writeInt(-1);
+                } else {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    myOut.writeInt(bytes.length);
+                    myOut.write(bytes);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        String getResult() {
+            StringBuilder result = new StringBuilder();
+            for (byte b : myDigest.digest()) {
+                result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return result.toString();
+        }
+    }
+}
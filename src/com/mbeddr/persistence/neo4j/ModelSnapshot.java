@@ -0,0 +1,95 @@
+package com.mbeddr.persistence.neo4j;
+
+import jetbrains.mps.extapi.model.SModelData;
+import jetbrains.mps.smodel.StaticReference;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.mps.openapi.language.SConcept;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.language.SReferenceLink;
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content of a model as read from the graph, in plain values and meta objects. Unlike the nodes built from it, a snapshot is never
+ * modified, so it can be kept in the {@link ModelCache} and turned into nodes any number of times.
+ */
+public final class ModelSnapshot {
+    private final List<NodeData> nodes = new ArrayList<>();
+    // parent, child, link
+    private final List<Object[]> children = new ArrayList<>();
+    // source, link, target, target model or null
+    private final List<Object[]> references = new ArrayList<>();
+    private final List<Object> roots = new ArrayList<>();
+
+    /*package*/ void addNode(Object id, SConcept concept, List<SProperty> properties, List<String> values, byte[] userObjects) {
+        nodes.add(new NodeData(id, concept, properties.toArray(new SProperty[properties.size()]), values.toArray(new String[values.size()]), userObjects));
+    }
+
+    /*package*/ void addChild(Object parent, Object child, String link) {
+        children.add(new Object[]{parent, child, link});
+    }
+
+    /*package*/ void addReference(Object source, String link, Object target, Object targetModel) {
+        references.add(new Object[]{source, link, target, targetModel});
+    }
+
+    /*package*/ void addRoot(Object id) {
+        roots.add(id);
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Creates the nodes of the snapshot and registers the roots into supplied ModelData
+     */
+    public void build(@NotNull SModelData modelData, @NotNull SModelReference modelReference) {
+        Map<Object, SNode> created = new HashMap<>(nodes.size() * 2);
+        for (NodeData data : nodes) {
+            jetbrains.mps.smodel.SNode node = new jetbrains.mps.smodel.SNode(data.concept, NodeUtils.toNodeId(data.id));
+            for (int i = 0; i < data.properties.length; i++) {
+                node.setProperty(data.properties[i], data.values[i]);
+            }
+            if (data.userObjects != null) {
+                // decoded for every model built, user objects may be modified
+                PackedProperties.readUserObjects(modelReference, data.userObjects, node);
+            }
+            created.put(data.id, node);
+        }
+        for (Object[] child : children) {
+            created.get(child[0]).addChild(NodeUtils.toContainmentLink((String) child[2]), created.get(child[1]));
+        }
+        for (Object[] reference : references) {
+            SNode source = created.get(reference[0]);
+            SReferenceLink link = NodeUtils.toReferenceLink((String) reference[1]);
+            SModelReference targetModel = reference[3] == null ? modelReference : GraphModelReader.toModelReference(reference[3]);
+            source.setReference(link, new StaticReference(link, source, targetModel, NodeUtils.toNodeId(reference[2]), null));
+        }
+        for (Object root : roots) {
+            modelData.addRootNode(created.get(root));
+        }
+    }
+
+    private static final class NodeData {
+        final Object id;
+        final SConcept concept;
+        final SProperty[] properties;
+        final String[] values;
+        // packed, null if there are none
+        final byte[] userObjects;
+
+        NodeData(Object id, SConcept concept, SProperty[] properties, String[] values, byte[] userObjects) {
+            this.id = id;
+            this.concept = concept;
+            this.properties = properties;
+            this.values = values;
+            this.userObjects = userObjects;
+        }
+    }
+}
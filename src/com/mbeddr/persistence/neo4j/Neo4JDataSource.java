@@ -0,0 +1,54 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.mps.openapi.model.SModelId;
+import org.jetbrains.mps.openapi.persistence.DataSource;
+import org.jetbrains.mps.openapi.persistence.DataSourceListener;
+
+/**
+ * Data source of a model that lives in the database only, without a file pointing to it.
+ */
+public class Neo4JDataSource implements DataSource {
+    private final Neo4JSettings settings;
+    private final SModelId modelId;
+
+    public Neo4JDataSource(@NotNull Neo4JSettings settings, @NotNull SModelId modelId) {
+        this.settings = settings;
+        this.modelId = modelId;
+    }
+
+    @NotNull
+    public Neo4JSettings getSettings() {
+        return settings;
+    }
+
+    @NotNull
+    public SModelId getModelId() {
+        return modelId;
+    }
+
+    @NotNull
+    @Override
+    public String getLocation() {
+        return settings.getUrl() + "#" + NodeUtils.getModelId(modelId);
+    }
+
+    @Override
+    public long getTimestamp() {
+        return -1;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public void addListener(@NotNull DataSourceListener listener) {
+        // changes made by other clients are not reported
+    }
+
+    @Override
+    public void removeListener(@NotNull DataSourceListener listener) {
+    }
+}
@@ -15,13 +15,11 @@
  */
 package com.mbeddr.persistence.neo4j;
 
-import jetbrains.mps.lang.smodel.generator.smodelAdapter.SModelOperations;
 import jetbrains.mps.persistence.IndexAwareModelFactory.Callback;
 import jetbrains.mps.persistence.MetaModelInfoProvider;
-import jetbrains.mps.persistence.MetaModelInfoProvider.BaseMetaModelInfo;
 import jetbrains.mps.persistence.MetaModelInfoProvider.RegularMetaModelInfo;
-import jetbrains.mps.persistence.MetaModelInfoProvider.StuffedMetaModelInfo;
 import jetbrains.mps.project.ModuleId;
+import jetbrains.mps.project.structure.modules.ModuleReference;
 import jetbrains.mps.smodel.DefaultSModel;
 import jetbrains.mps.smodel.SModel;
 import jetbrains.mps.smodel.SModelHeader;
@@ -29,8 +27,8 @@ import jetbrains.mps.smodel.loading.ModelLoadResult;
 import jetbrains.mps.smodel.loading.ModelLoadingState;
 import jetbrains.mps.smodel.persistence.def.ModelReadException;
 import jetbrains.mps.util.FileUtil;
-import jetbrains.mps.util.IterableUtil;
 import jetbrains.mps.util.io.ModelInputStream;
+import jetbrains.mps.util.io.ModelOutputStream;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.mps.openapi.model.SModelId;
@@ -39,21 +37,25 @@ import org.jetbrains.mps.openapi.model.SNode;
 import org.jetbrains.mps.openapi.model.SNodeId;
 import org.jetbrains.mps.openapi.module.SModuleId;
 import org.jetbrains.mps.openapi.module.SModuleReference;
+import org.jetbrains.mps.openapi.persistence.DataSource;
+import org.jetbrains.mps.openapi.persistence.PersistenceFacade;
 import org.jetbrains.mps.openapi.persistence.StreamDataSource;
+import org.neo4j.driver.v1.Record;
 import org.neo4j.driver.v1.Statement;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author evgeny, 11/21/12
@@ -63,7 +65,24 @@ public final class Neo4JPersistence {
 
   private final MetaModelInfoProvider myMetaInfoProvider;
   private final SModel myModelData;
-  private static final ExecutorService threadExecutor = Executors.newSingleThreadExecutor();
+  private static final int BATCH_SIZE = Integer.getInteger("neo4j.persistence.batchSize", NodeBatchWriter.DEFAULT_BATCH_SIZE);
+  // more changes than this and the whole model is written again
+  private static final int DELTA_LIMIT = Integer.getInteger("neo4j.persistence.deltaLimit", 1000);
+  private static final int RELATION_WRITERS = Integer.getInteger("neo4j.persistence.relationWriters", 4);
+  // optional properties of the header are stored on the SModel node with this prefix
+  private static final String OPTION_PREFIX = "Option_";
+  private static final String QUERY_HEADER_BY_ID = "MATCH (m:SModel) WHERE m.Id = {modelId} RETURN m";
+  private static final String QUERY_HEADERS = "MATCH (m:SModel) RETURN m";
+  private static final String QUERY_MODULE_HEADERS = "MATCH (m:SModel) WHERE m.ModuleId = {moduleId} RETURN m";
+  private static final String QUERY_REVISION = "MATCH (m:SModel) WHERE m.Id = {modelId} RETURN m." + MergeModel.REVISION + " AS revision, m." + MergeModel.SAVING + " AS saving";
+  // targets without a model are nodes written before they had one, they were always local
+  private static final String QUERY_REFERENCE_TARGETS =
+      "MATCH (m:SModel)-[:ROOT]->(:SNode)-[:CONTAINMENT*0..]->(:SNode)-[:REFERENCE]->(target) WHERE m.Id = {modelId} " +
+      "RETURN DISTINCT target.NodeId, coalesce(target.ModelId, {modelId}) = {modelId}";
+  private static final String QUERY_DIGESTS =
+      "MATCH (m:SModel) WHERE m.Id = {modelId} OPTIONAL MATCH (m)-[r:ROOT]->(n:SNode) " +
+      "RETURN m." + ModelDigest.PROPERTY + ", n.NodeId, n." + ModelDigest.PROPERTY + ", m." + MergeModel.SAVING + " ORDER BY r.Index";
+  private static final int DELETE_CHUNK_SIZE = Integer.getInteger("neo4j.persistence.deleteChunkSize", ModelCleanup.DEFAULT_CHUNK_SIZE);
 
   public static SModelHeader readHeader(@NotNull StreamDataSource source) throws ModelReadException {
     ModelInputStream mis = null;
@@ -77,102 +96,372 @@ public final class Neo4JPersistence {
     }
   }
 
-  public static ModelLoadResult readModel(@NotNull SModelHeader header, @NotNull StreamDataSource source, boolean interfaceOnly) throws ModelReadException {
-    final SModelReference desiredModelRef = header.getModelReference();
+  /**
+   * Header of the model the stub file refers to, as stored in the database if the model is there already
+   */
+  public static SModelHeader readHeader(@NotNull BoltCypherExecutor executor, @NotNull StreamDataSource source) throws ModelReadException {
+    SModelHeader stub = readHeader(source);
+    SModelHeader header = readHeader(executor, stub.getModelReference().getModelId());
+    return header != null ? header : stub;
+  }
+
+  /**
+   * @return header of the model as stored on its SModel node, null if there is no such model in the database.
+   * Headers are served from the {@link HeaderCache} as long as the revision of the SModel node is the one they
+   * were read at, only the revision is transferred then.
+   */
+  @Nullable
+  public static SModelHeader readHeader(@NotNull BoltCypherExecutor executor, @NotNull SModelId modelId) {
+    Object id = NodeUtils.getModelId(modelId);
+    Long revision = readRevision(executor, id);
+    SModelHeader cached = revision == null ? null : HeaderCache.get(executor, id, revision);
+    if (cached != null) {
+      return cached;
+    }
+    Iterator<Map<String, Object>> rows = executor.query(new Statement(QUERY_HEADER_BY_ID, Collections.singletonMap("modelId", id)));
+    return rows.hasNext() ? toHeader(executor, rows.next()) : null;
+  }
+
+  /**
+   * @return headers of all models stored in the database, read with a single query
+   */
+  @NotNull
+  public static List<SModelHeader> readHeaders(@NotNull BoltCypherExecutor executor) {
+    return readHeaders(executor, executor.query(new Statement(QUERY_HEADERS)));
+  }
+
+  /**
+   * @return headers of the models of the module stored in the database, read with a single query
+   */
+  @NotNull
+  public static List<SModelHeader> readHeaders(@NotNull BoltCypherExecutor executor, @NotNull SModuleId moduleId) {
+    return readHeaders(executor, executor.query(new Statement(QUERY_MODULE_HEADERS, Collections.singletonMap("moduleId", getModuleId(moduleId)))));
+  }
+
+  private static List<SModelHeader> readHeaders(BoltCypherExecutor executor, Iterator<Map<String, Object>> rows) {
+    ArrayList<SModelHeader> result = new ArrayList<>();
+    while (rows.hasNext()) {
+      result.add(toHeader(executor, rows.next()));
+    }
+    return result;
+  }
+
+  /**
+   * Header from the properties of the SModel node, also put into the cache
+   */
+  @SuppressWarnings("unchecked")
+  private static SModelHeader toHeader(BoltCypherExecutor executor, Map<String, Object> row) {
+    Map<String, Object> properties = (Map<String, Object>) row.get("m");
+    SModelHeader header = new SModelHeader();
+    header.setModelReference(toModelReference(properties));
+    header.setDoNotGenerate(Boolean.TRUE.equals(properties.get("DoNotGenerate")));
+    for (Map.Entry<String, Object> property : properties.entrySet()) {
+      if (property.getKey().startsWith(OPTION_PREFIX)) {
+        header.setOptionalProperty(property.getKey().substring(OPTION_PREFIX.length()), (String) property.getValue());
+      }
+    }
+    Object revision = properties.get(MergeModel.REVISION);
+    HeaderCache.put(executor, properties.get("Id"), revision instanceof Number ? ((Number) revision).longValue() : 0, header);
+    return header;
+  }
+
+  /**
+   * Reference of the model from the properties of its SModel node
+   */
+  /*package*/ static SModelReference toModelReference(Map<String, Object> properties) {
+    SModuleReference module = null;
+    if (properties.get("ModuleId") != null) {
+      module = new ModuleReference((String) properties.get("ModuleName"), ModuleId.regular(UUID.fromString((String) properties.get("ModuleId"))));
+    }
+    return PersistenceFacade.getInstance().createModelReference(module, NodeUtils.toModelId(properties.get("Id")), (String) properties.get("Name"));
+  }
+
+  /**
+   * Header as it's written to the database with the model
+   */
+  private static SModelHeader snapshotHeader(SModel model) {
+    if (model instanceof DefaultSModel) {
+      return ((DefaultSModel) model).getSModelHeader().createCopy();
+    }
+    SModelHeader header = new SModelHeader();
+    header.setModelReference(model.getReference());
+    return header;
+  }
+
+  private static long getRevision(Iterator<Map<String, Object>> rows) {
+    Object revision = rows.hasNext() ? rows.next().get("revision") : null;
+    return revision instanceof Number ? ((Number) revision).longValue() : 0;
+  }
+
+  /**
+   * The nodes of the model are read from the database, the data source only tells which model it is.
+   * A model read before is rebuilt from the {@link ModelCache} as long as its revision hasn't changed since,
+   * in that case it's fully loaded even if only the interface was asked for.
+   * @param interfaceOnly read only the roots, without their children
+   */
+  public static ModelLoadResult readModel(@NotNull BoltCypherExecutor executor, @NotNull SModelHeader header, boolean interfaceOnly) throws ModelReadException {
+    final SModelReference modelRef = header.getModelReference();
     try {
-      ModelLoadResult rv = loadModel(source.openInputStream(), interfaceOnly, header.getMetaInfoProvider());
-      SModelReference actualModelRef = rv.getModel().getReference();
-      if (!actualModelRef.equals(desiredModelRef)) {
-        throw new ModelReadException(String.format("Intended to read model %s, actually read %s", desiredModelRef, actualModelRef), null, actualModelRef);
+      DefaultSModel model = new DefaultSModel(modelRef, header);
+      Object modelId = NodeUtils.getModelId(modelRef.getModelId());
+      Long revision = readRevision(executor, modelId);
+      ModelSnapshot snapshot = revision == null ? null : ModelCache.getInstance().get(executor, modelId, revision);
+      if (snapshot != null) {
+        snapshot.build(model, modelRef);
+        return new ModelLoadResult((SModel) model, ModelLoadingState.FULLY_LOADED);
       }
-      return rv;
-    } catch (IOException e) {
-      throw new ModelReadException("Couldn't read model: " + e.toString(), e, desiredModelRef);
+      GraphModelReader reader = new GraphModelReader(executor, modelRef);
+      if (interfaceOnly) {
+        reader.readRootsInto(model);
+        return new ModelLoadResult((SModel) model, ModelLoadingState.INTERFACE_LOADED);
+      }
+      snapshot = reader.readSnapshot();
+      // the content is read with several queries, a save that got in between may have been seen in part
+      if (revision != null && revision.equals(readRevision(executor, modelId))) {
+        ModelCache.getInstance().put(executor, modelId, revision, snapshot);
+      }
+      snapshot.build(model, modelRef);
+      return new ModelLoadResult((SModel) model, ModelLoadingState.FULLY_LOADED);
+    } catch (RuntimeException e) {
+      throw new ModelReadException("Couldn't read model: " + e.toString(), e, modelRef);
+    }
+  }
+
+  /**
+   * Saves increment the revision once all of their content is written. Read before and after the content, a snapshot
+   * is only cached if no save was running or finished in between.
+   * @return revision of the SModel node, null if the model isn't in the database or is being saved
+   */
+  @Nullable
+  private static Long readRevision(BoltCypherExecutor executor, Object modelId) {
+    Iterator<Map<String, Object>> rows = executor.query(new Statement(QUERY_REVISION, Collections.singletonMap("modelId", modelId)));
+    if (!rows.hasNext()) {
+      return null;
+    }
+    Map<String, Object> row = rows.next();
+    if (Boolean.TRUE.equals(row.get("saving"))) {
+      return null;
     }
+    Object revision = row.get("revision");
+    return revision instanceof Number ? ((Number) revision).longValue() : 0L;
+  }
+
+  public static CompletableFuture<Void> writeModel(@NotNull SavePipeline pipeline, @NotNull SModel model, @NotNull DataSource dataSource) throws IOException {
+    return writeModel(pipeline, model, dataSource, null);
   }
 
-  public static void writeModel(@NotNull SModel model, @NotNull StreamDataSource dataSource) throws IOException {
+  /**
+   * Writing happens in the background, the model may be modified once this method returns.
+   * @param changeTracker if not null and the recorded changes allow it, only the changes are written
+   * @return future completed once the model is committed to the database
+   */
+  public static CompletableFuture<Void> writeModel(@NotNull SavePipeline pipeline, @NotNull SModel model, @NotNull DataSource dataSource, @Nullable ModelChangeTracker changeTracker) throws IOException {
     if (dataSource.isReadOnly()) {
       throw new IOException(String.format("`%s' is read-only", dataSource.getLocation()));
     }
-    writeModel(model);
+    if (dataSource instanceof StreamDataSource) {
+      writeHeader(model.getReference(), (StreamDataSource) dataSource);
+    }
+    return saveModel(pipeline, model, changeTracker);
   }
-  public static void writeModel(@NotNull SModel model) throws IOException {
-      saveModel(model);
+  public static CompletableFuture<Void> writeModel(@NotNull SavePipeline pipeline, @NotNull SModel model) throws IOException {
+      return saveModel(pipeline, model, null);
   }
 
   public static Map<String, String> getDigestMap(jetbrains.mps.smodel.SModel model, @Nullable MetaModelInfoProvider mmiProvider) {
-    Map<String, String> result = new LinkedHashMap<String, String>();
+    return ModelDigest.compute(model);
+  }
 
-    return result;
+  /**
+   * Digests stored when the model was saved, read with a single query and without loading the model.
+   * Saves still waiting in the pipeline are written first.
+   * @return null if the model is not in the database, was saved without digests, is being saved or its last save
+   * failed
+   */
+  @Nullable
+  public static Map<String, String> readDigestMap(@NotNull SavePipeline pipeline, @NotNull SModelId modelId) {
+    Object id = NodeUtils.getModelId(modelId);
+    if (!pipeline.flush(id)) {
+      return null;
+    }
+    String[] header = new String[1];
+    Map<SNodeId, String> roots = new LinkedHashMap<>();
+    boolean[] complete = {false};
+    Statement query = new Statement(QUERY_DIGESTS, Collections.singletonMap("modelId", id));
+    try (Stream<Record> rows = pipeline.getExecutor().stream(query, r -> r)) {
+      complete[0] = rows.allMatch(row -> {
+        // digests of a save in progress may be half-written
+        if (row.get(0).isNull() || Boolean.TRUE.equals(row.get(3).asObject())) {
+          return false;
+        }
+        header[0] = row.get(0).asString();
+        if (row.get(1).isNull()) {
+          // a model without roots
+          return true;
+        }
+        if (row.get(2).isNull()) {
+          return false;
+        }
+        roots.put(NodeUtils.toNodeId(row.get(1).asObject()), row.get(2).asString());
+        return true;
+      });
+    }
+    return complete[0] && header[0] != null ? ModelDigest.toDigestMap(header[0], roots) : null;
   }
 
 
   private static final int HEADER_START   = 0x91ABABA9;
-  private static final int STREAM_ID_V1   = 0x00000300;
   private static final int STREAM_ID_V2   = 0x00000400;
   private static final int STREAM_ID      = STREAM_ID_V2;
-  private static final byte HEADER_ATTRIBUTES = 0x7e;
   private static final int HEADER_END     = 0xabababab;
-  private static final int MODEL_START    = 0xbabababa;
-  private static final int REGISTRY_START = 0x5a5a5a5a;
-  private static final int REGISTRY_END   = 0xa5a5a5a5;
-  private static final byte STUB_NONE     = 0x12;
-  private static final byte STUB_ID       = 0x13;
-
 
+  /**
+   * The data source only holds the reference of the model, everything else lives in the database.
+   */
+  private static void writeHeader(SModelReference reference, StreamDataSource dataSource) throws IOException {
+    ModelOutputStream mos = null;
+    try {
+      mos = new ModelOutputStream(dataSource.openOutputStream());
+      mos.writeInt(HEADER_START);
+      mos.writeInt(STREAM_ID);
+      mos.writeModelReference(reference);
+      mos.writeInt(HEADER_END);
+    } finally {
+      FileUtil.closeFileSafe(mos);
+    }
+  }
 
   @NotNull
   private static SModelHeader loadHeader(ModelInputStream is) throws IOException {
+    assertSyncToken(is, HEADER_START);
+    int streamId = is.readInt();
+    if (streamId != STREAM_ID) {
+      throw new IOException(String.format("Unknown stream id %x, expected %x", streamId, STREAM_ID));
+    }
     SModelHeader result = new SModelHeader();
+    result.setModelReference(is.readModelReference());
+    assertSyncToken(is, HEADER_END);
     return result;
   }
-  @NotNull
-  private static ModelLoadResult loadModel(InputStream is, boolean interfaceOnly, @Nullable MetaModelInfoProvider mmiProvider) throws IOException {
-    ModelInputStream mis = null;
-    try {
-      mis = new ModelInputStream(is);
-      SModelHeader modelHeader = loadHeader(mis);
-
-      DefaultSModel model = new DefaultSModel(modelHeader.getModelReference(), modelHeader);
-      Neo4JPersistence bp = new Neo4JPersistence(mmiProvider == null ? new RegularMetaModelInfo(modelHeader.getModelReference()) : mmiProvider, model);
-
 
-      NodesReader reader = new NodesReader(modelHeader.getModelReference(), mis);
-      reader.readNodesInto(model);
-      return new ModelLoadResult((SModel) model, reader.hasSkippedNodes() ? ModelLoadingState.INTERFACE_LOADED : ModelLoadingState.FULLY_LOADED);
-    } finally {
-      FileUtil.closeFileSafe(mis);
+  private static CompletableFuture<Void> saveModel(SavePipeline pipeline, SModel model, @Nullable ModelChangeTracker changeTracker) throws IOException {
+    final Object modelId = NodeUtils.getModelId(model.getReference().getModelId());
+    if (changeTracker != null && changeTracker.canSaveIncrementally(DELTA_LIMIT)) {
+      return whenFailed(saveChanges(pipeline, modelId, model, changeTracker.takeChanges()), changeTracker);
     }
-  }
-
-  private static void saveModel(SModel model) throws IOException {
     final MetaModelInfoProvider mmiProvider;
     if (model instanceof DefaultSModel && ((DefaultSModel) model).getSModelHeader().getMetaInfoProvider() != null) {
       mmiProvider = ((DefaultSModel) model).getSModelHeader().getMetaInfoProvider();
     } else {
       mmiProvider = new RegularMetaModelInfo(model.getReference());
     }
-    BoltCypherExecutor executor = new BoltCypherExecutor("bolt://localhost:7687", "neo4j", "hanshans");
-    executor.query(new Statement("MATCH (n) DETACH DELETE n"));
-    executor.query(new Statement("CREATE CONSTRAINT ON (n:SNode) ASSERT n.NodeId IS UNIQUE;"));
+    if (changeTracker != null) {
+      changeTracker.markInSync();
+    }
 
     Neo4JPersistence bp = new Neo4JPersistence(mmiProvider, model);
-    CreateNode record = bp.saveModelProperties();
-    executor.query(record.toStatement());
-    Collection<SNode> roots = IterableUtil.asCollection(model.getRootNodes());
+    final Statement modelRecord = new MergeModel(bp.saveModelProperties()).beginSave().toStatement();
+    final SModelHeader header = snapshotHeader(model);
+    // statements are created right away, the model may change once we return. The model is walked once, each
+    // statement is added to its batch right away. Relations keep only the parameters of their batches, nodes keep
+    // what they took from the model until the task has registry ids for their concepts and properties.
+    final List<CypherStatement> nodeBatch = new ArrayList<>();
+    final List<Statement> rootBatch = new ArrayList<>();
+    final List<List<Statement>> relationBatches = new ArrayList<>(RELATION_WRITERS);
+    List<RelationBatchWriter> relationWriters = new ArrayList<>(RELATION_WRITERS);
+    int[] relationCounts = new int[RELATION_WRITERS];
+    for (int i = 0; i < RELATION_WRITERS; i++) {
+      List<Statement> partition = new ArrayList<>();
+      relationBatches.add(partition);
+      relationWriters.add(new RelationBatchWriter(BATCH_SIZE, record -> partition.add(record.toStatement())));
+    }
+    NodeBatchWriter nodeWriter = new NodeBatchWriter(BATCH_SIZE, nodeBatch::add);
+    // all of them lock the SModel node, no point in writing them in parallel
+    RelationBatchWriter rootWriter = new RelationBatchWriter(BATCH_SIZE, record -> rootBatch.add(record.toStatement()));
+
+    final BareNodeWriter writer = new BareNodeWriter(model.getReference(), MetaRegistry.get(pipeline.getExecutor()));
+    int index = 0;
+    for (SNode root : model.getRootNodes()) {
+      // all edges of a root go to the same partition, the one with the fewest edges so far
+      int partition = 0;
+      for (int i = 1; i < RELATION_WRITERS; i++) {
+        if (relationCounts[i] < relationCounts[partition]) {
+          partition = i;
+        }
+      }
+      for (Iterator<CypherStatement> it = writer.iterateRoot(root); it.hasNext(); ) {
+        CypherStatement record = it.next();
+        if (record.needsNodesToBeCreated()) {
+          relationWriters.get(partition).add(record);
+          relationCounts[partition]++;
+        } else {
+          nodeWriter.add(record);
+        }
+      }
+      rootWriter.add(new CreateRootRelation(root, model.getReference(), index++));
+    }
+    nodeWriter.flush();
+    rootWriter.flush();
+    for (RelationBatchWriter relationWriter : relationWriters) {
+      relationWriter.flush();
+    }
 
+    return whenFailed(pipeline.submit(modelId, true, executor -> {
+      SchemaManager.ensureSchema(executor);
+      // marked as being saved before anything is deleted, readers don't cache what they see until it's finished
+      executor.query(modelRecord);
+      new ModelCleanup(executor, DELETE_CHUNK_SIZE).deleteContent(modelId);
+      writer.registerNew();
+      executor.excec(toStatements(nodeBatch));
+      // edges of different roots hardly ever touch the same nodes
+      executor.excecInParallel(relationBatches, RELATION_WRITERS);
+      executor.excecWithRetry(rootBatch);
+      PromoteProxies.inChunks(executor, modelId, DELETE_CHUNK_SIZE);
+      HeaderCache.put(executor, modelId, getRevision(executor.query(MergeModel.finishSave(modelId))), header);
+    }), changeTracker);
+  }
 
-    List<CypherStatement> cypherRecords = new BareNodeWriter(model.getReference()).writeRoots(roots);
+  private static List<Statement> toStatements(List<CypherStatement> records) {
+    return records.stream().map(CypherStatement::toStatement).collect(Collectors.toList());
+  }
 
-    try {
-      final List<Statement> firstBatch = cypherRecords.stream().filter(x -> !x.needsNodesToBeCreated()).map(CypherStatement::toStatement).collect(Collectors.toList());
-      final List<Statement> secondBatch = cypherRecords.stream().filter(x -> x.needsNodesToBeCreated()).map(CypherStatement::toStatement).collect(Collectors.toList());
-      threadExecutor.submit(() -> executor.excec(firstBatch));
-      threadExecutor.submit(() -> executor.excec(secondBatch));
-      } catch (Exception e) {
-      e.printStackTrace();
+  private static CompletableFuture<Void> saveChanges(SavePipeline pipeline, Object modelId, SModel model, ModelChangeTracker.Changes changes) throws IOException {
+    final DeltaWriter writer = new DeltaWriter(model.getReference(), BATCH_SIZE, MetaRegistry.get(pipeline.getExecutor()));
+    // statements referring to live nodes are created right away, the others once the registry has ids for them
+    final List<Supplier<Statement>> statements = new ArrayList<>();
+    for (CypherStatement record : writer.write(changes)) {
+      if (record instanceof DeferredStatement) {
+        statements.add(record::toStatement);
+      } else {
+        Statement statement = record.toStatement();
+        statements.add(() -> statement);
+      }
     }
+    // the header isn't tracked, it's cheap enough to write anyway
+    final Statement modelRecord = new MergeModel(new Neo4JPersistence(new RegularMetaModelInfo(model.getReference()), model).saveModelProperties()).toStatement();
+    final SModelHeader header = snapshotHeader(model);
+    return pipeline.submit(modelId, false, executor -> {
+      SchemaManager.ensureSchema(executor);
+      writer.registerNew();
+      // the revision changes with the content, a reader can't cache the old content under the new revision
+      List<Statement> transaction = statements.stream().map(Supplier::get).collect(Collectors.toCollection(ArrayList::new));
+      transaction.add(modelRecord);
+      HeaderCache.put(executor, modelId, getRevision(executor.queryWithRetry(transaction)), header);
+    });
+  }
+
+  /**
+   * A failed write leaves the database in an unknown state, the next save of the model has to be a full one.
+   */
+  private static CompletableFuture<Void> whenFailed(CompletableFuture<Void> save, @Nullable ModelChangeTracker changeTracker) {
+    if (changeTracker != null) {
+      save.whenComplete((ignored, error) -> {
+        if (error != null) {
+          changeTracker.markOutOfSync();
+        }
+      });
+    }
+    return save;
   }
 
   private Neo4JPersistence(@NotNull MetaModelInfoProvider mmiProvider, SModel modelData) {
@@ -189,12 +478,13 @@ public final class Neo4JPersistence {
     SModelReference reference = myModelData.getReference();
 
     writeModelReference(record, reference);
+    record.addString(ModelDigest.PROPERTY, ModelDigest.header(myModelData));
     if (myModelData instanceof DefaultSModel) {
       SModelHeader mh = ((DefaultSModel) myModelData).getSModelHeader();
       record.addBoolean("DoNotGenerate", mh.isDoNotGenerate());
-      Map<String, String> props = new HashMap<String, String>(mh.getOptionalProperties());
-      //todo
-      //record.addMap("props", props);
+      for (Map.Entry<String, String> property : mh.getOptionalProperties().entrySet()) {
+        record.addString(OPTION_PREFIX + property.getKey(), property.getValue());
+      }
     }
 
     return record;
@@ -211,39 +501,55 @@ public final class Neo4JPersistence {
     SModuleReference moduleReference = reference.getModuleReference();
     if (moduleReference != null) {
       record.addString("ModuleName", moduleReference.getModuleName());
-      SModuleId moduleId = moduleReference.getModuleId();
-      if (moduleId instanceof ModuleId.Regular) {
-        record.addString("ModuleId", ((ModuleId.Regular) moduleId).getUUID().toString());
-      } else {
-        throw new UnsupportedOperationException("Can't save id of type " + moduleId.getClass().getCanonicalName());
-      }
+      record.addString("ModuleId", getModuleId(moduleReference.getModuleId()));
     }
   }
 
-  public static void index(InputStream content, final Callback consumer) throws IOException {
+  private static String getModuleId(SModuleId moduleId) {
+    if (moduleId instanceof ModuleId.Regular) {
+      return ((ModuleId.Regular) moduleId).getUUID().toString();
+    }
+    throw new UnsupportedOperationException("Can't save id of type " + moduleId.getClass().getCanonicalName());
+  }
+
+  /**
+   * Reports the targets of the references of the model stored with the stub in {@code content}, see
+   * {@link #index(SavePipeline, SModelId, Callback)}
+   */
+  public static void index(@NotNull SavePipeline pipeline, InputStream content, final Callback consumer) throws IOException {
     ModelInputStream mis = null;
+    SModelHeader modelHeader;
     try {
       mis = new ModelInputStream(content);
-      SModelHeader modelHeader = loadHeader(mis);
-      SModel model = new DefaultSModel(modelHeader.getModelReference(), modelHeader);
-      Neo4JPersistence bp = new Neo4JPersistence(new StuffedMetaModelInfo(new BaseMetaModelInfo()), model);
-      final NodesReader reader = new NodesReader(modelHeader.getModelReference(), mis);
-      HashSet<SNodeId> externalNodes = new HashSet<SNodeId>();
-      HashSet<SNodeId> localNodes = new HashSet<SNodeId>();
-      reader.collectExternalTargets(externalNodes);
-      reader.collectLocalTargets(localNodes);
-      reader.readChildren(null);
-      for (SNodeId n : externalNodes) {
-        consumer.externalNodeRef(n);
-      }
-      for (SNodeId n : localNodes) {
-        consumer.localNodeRef(n);
-      }
+      modelHeader = loadHeader(mis);
     } finally {
       FileUtil.closeFileSafe(mis);
     }
+    index(pipeline, modelHeader.getModelReference().getModelId(), consumer);
   }
 
+  /**
+   * Reports the targets of the references of the model, read from the graph with a single query.
+   * No nodes are instantiated, only the ids of distinct targets are transferred. Saves still waiting in the pipeline
+   * are written first.
+   */
+  public static void index(@NotNull SavePipeline pipeline, @NotNull SModelId modelId, final Callback consumer) {
+    Object id = NodeUtils.getModelId(modelId);
+    pipeline.flush(id);
+    Statement query = new Statement(QUERY_REFERENCE_TARGETS, Collections.singletonMap("modelId", id));
+    try (Stream<Record> targets = pipeline.getExecutor().stream(query, r -> r)) {
+      targets.forEach(target -> {
+        SNodeId nodeId = NodeUtils.toNodeId(target.get(0).asObject());
+        if (target.get(1).asBoolean()) {
+          consumer.localNodeRef(nodeId);
+        } else {
+          consumer.externalNodeRef(nodeId);
+        }
+      });
+    }
+  }
+
+
   private static void assertSyncToken(ModelInputStream is, int token) throws IOException {
     if (is.readInt() != token) {
       throw new IOException("bad stream, no sync token");
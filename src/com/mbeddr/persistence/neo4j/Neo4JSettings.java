@@ -0,0 +1,83 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Connection settings of a Neo4j database: the bolt endpoint, credentials and connection pool configuration.
+ */
+public final class Neo4JSettings {
+    public static final String DEFAULT_URL = "bolt://localhost:7687";
+    public static final int DEFAULT_POOL_SIZE = 10;
+    public static final long DEFAULT_ACQUISITION_TIMEOUT = 30000;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int poolSize;
+    private final long acquisitionTimeout;
+
+    public Neo4JSettings(@NotNull String url, @Nullable String username, @Nullable String password, int poolSize, long acquisitionTimeout) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+        }
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.poolSize = poolSize;
+        this.acquisitionTimeout = acquisitionTimeout;
+    }
+
+    /**
+     * Settings of the default database, configured with the {@code neo4j.persistence.url}, {@code .user},
+     * {@code .password}, {@code .poolSize} and {@code .acquisitionTimeout} (in milliseconds) system properties.
+     */
+    public static Neo4JSettings fromSystemProperties() {
+        return new Neo4JSettings(
+                System.getProperty("neo4j.persistence.url", DEFAULT_URL),
+                System.getProperty("neo4j.persistence.user", "neo4j"),
+                System.getProperty("neo4j.persistence.password"),
+                Integer.getInteger("neo4j.persistence.poolSize", DEFAULT_POOL_SIZE),
+                Long.getLong("neo4j.persistence.acquisitionTimeout", DEFAULT_ACQUISITION_TIMEOUT));
+    }
+
+    /**
+     * Same credentials and pool configuration, different endpoint.
+     */
+    public Neo4JSettings withUrl(@NotNull String url) {
+        return new Neo4JSettings(url, username, password, poolSize, acquisitionTimeout);
+    }
+
+    @NotNull
+    public String getUrl() {
+        return url;
+    }
+
+    @Nullable
+    public String getUsername() {
+        return username;
+    }
+
+    @Nullable
+    public String getPassword() {
+        return password;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public long getAcquisitionTimeout() {
+        return acquisitionTimeout;
+    }
+
+    /**
+     * Only settings equal in endpoint, credentials and pool configuration can share a driver, the key covers all of them.
+     * The password is included by its hash code only, it is not meant to show up where keys do.
+     */
+    public String getEndpointKey() {
+        return (username == null ? url : username + "@" + url) + "?poolSize=" + poolSize
+                + "&acquisitionTimeout=" + acquisitionTimeout
+                + (password == null ? "" : "&password=" + Integer.toHexString(password.hashCode()));
+    }
+}
@@ -0,0 +1,70 @@
+package com.mbeddr.persistence.neo4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Replaces individual {@link CreateNode} statements with {@link CreateNodeBatch}es grouped by node shape
+ * (label and attribute keys). Any other statement is passed through unchanged.
+ * Statements can be added one at a time, a batch is handed to the consumer as soon as it is full.
+ */
+public class NodeBatchWriter {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final int batchSize;
+    private final Consumer<? super CypherStatement> out;
+    private final Map<Object, CreateNodeBatch> open = new LinkedHashMap<>();
+
+    public NodeBatchWriter(int batchSize, Consumer<? super CypherStatement> out) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+        this.out = out;
+    }
+
+    /**
+     * Batches the given statements in one go and returns the result in order.
+     */
+    public static List<CypherStatement> write(int batchSize, Iterable<? extends CypherStatement> statements) {
+        ArrayList<CypherStatement> result = new ArrayList<>();
+        NodeBatchWriter writer = new NodeBatchWriter(batchSize, result::add);
+        for (CypherStatement statement : statements) {
+            writer.add(statement);
+        }
+        writer.flush();
+        return result;
+    }
+
+    public void add(CypherStatement statement) {
+        if (!(statement instanceof CreateNode)) {
+            out.accept(statement);
+            return;
+        }
+        CreateNode node = (CreateNode) statement;
+        Object shape = node.getShape();
+        CreateNodeBatch batch = open.get(shape);
+        if (batch == null) {
+            batch = new CreateNodeBatch(node);
+            open.put(shape, batch);
+        }
+        batch.add(node);
+        if (batch.size() >= batchSize) {
+            out.accept(batch);
+            open.remove(shape);
+        }
+    }
+
+    /**
+     * Hands the batches that are not full yet to the consumer.
+     */
+    public void flush() {
+        for (CreateNodeBatch batch : open.values()) {
+            out.accept(batch);
+        }
+        open.clear();
+    }
+}
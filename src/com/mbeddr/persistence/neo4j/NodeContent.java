@@ -0,0 +1,99 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.mps.openapi.language.SConcept;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.model.SNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Concept, properties and user objects of a node, taken when its statement is created. They are turned into
+ * attributes only once the {@link MetaRegistry} has ids for them, which happens in the save task.
+ */
+/*package*/ final class NodeContent {
+    private final SConcept concept;
+    private final SProperty[] properties;
+    private final String[] values;
+    // packed, only taken for PackedProperties
+    private final byte[] userObjects;
+
+    private NodeContent(SConcept concept, SProperty[] properties, String[] values, byte[] userObjects) {
+        this.concept = concept;
+        this.properties = properties;
+        this.values = values;
+        this.userObjects = userObjects;
+    }
+
+    /**
+     * Concept and all properties of the node, with the user objects if properties are packed
+     */
+    static NodeContent of(SNode node, BareNodeWriter writer) {
+        List<SProperty> properties = new ArrayList<>();
+        for (SProperty property : node.getProperties()) {
+            properties.add(property);
+        }
+        byte[] userObjects = PackedProperties.ENABLED ? PackedProperties.packUserObjects(node, writer) : null;
+        return capture(node.getConcept(), node, properties, userObjects);
+    }
+
+    /**
+     * Current values of the given properties only, properties without a value are kept as null
+     */
+    static NodeContent ofProperties(SNode node, Collection<SProperty> properties) {
+        return capture(null, node, properties, null);
+    }
+
+    private static NodeContent capture(SConcept concept, SNode node, Collection<SProperty> properties, byte[] userObjects) {
+        SProperty[] array = properties.toArray(new SProperty[properties.size()]);
+        String[] values = new String[array.length];
+        for (int i = 0; i < array.length; i++) {
+            values[i] = node.getProperty(array[i]);
+        }
+        return new NodeContent(concept, array, values, userObjects);
+    }
+
+    SConcept getConcept() {
+        return concept;
+    }
+
+    SProperty[] getProperties() {
+        return properties;
+    }
+
+    String[] getValues() {
+        return values;
+    }
+
+    /**
+     * Equal for contents written with the same attribute keys
+     */
+    Object getShape() {
+        return Arrays.asList(concept != null, new HashSet<>(Arrays.asList(properties)));
+    }
+
+    String pack(MetaRegistry registry) {
+        return PackedProperties.pack(properties, values, userObjects, registry);
+    }
+
+    /**
+     * Adds the concept id and the properties, packed or with their registry keys, to the node
+     */
+    void addTo(CreateNode node, MetaRegistry registry) {
+        if (concept != null) {
+            node.addInt(MetaRegistry.CONCEPT, registry.getConceptId(concept));
+        }
+        if (PackedProperties.ENABLED) {
+            node.addString(PackedProperties.KEY, pack(registry));
+            if (!PackedProperties.QUERYABLE) {
+                return;
+            }
+        }
+        for (int i = 0; i < properties.length; i++) {
+            node.addString(registry.getPropertyKey(properties[i]), values[i]);
+        }
+    }
+}
@@ -1,12 +1,36 @@
 package com.mbeddr.persistence.neo4j;
 
+import jetbrains.mps.smodel.adapter.ids.MetaIdHelper;
+import jetbrains.mps.smodel.adapter.ids.SConceptId;
+import jetbrains.mps.smodel.adapter.ids.SContainmentLinkId;
+import jetbrains.mps.smodel.adapter.ids.SPropertyId;
+import jetbrains.mps.smodel.adapter.ids.SReferenceLinkId;
+import jetbrains.mps.smodel.adapter.structure.MetaAdapterFactory;
+import org.jetbrains.mps.openapi.language.SConcept;
+import org.jetbrains.mps.openapi.language.SContainmentLink;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.language.SReferenceLink;
 import org.jetbrains.mps.openapi.model.SModelId;
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
 import org.jetbrains.mps.openapi.model.SNodeId;
+import org.jetbrains.mps.openapi.persistence.PersistenceFacade;
+
+import java.util.UUID;
 
 /**
  * Created by kdummann on 27/10/2016.
  */
 public class NodeUtils {
+    private static final String PROPERTY_PREFIX = "Property_";
+    private static final String FOREIGN_MODEL_PREFIX = "Foreign_";
+    private static final String STRING_MODEL_PREFIX = "String_";
+    /**
+     * Cypher expression for the key of node {@code target} in model {@code model},
+     * computes the same value as {@link #getNodeKey(SModelId, SNodeId)}
+     */
+    public static final String NODE_KEY = "model + '#' + target";
+
     public static Object getNodeId(SNodeId id) {
         if (id instanceof jetbrains.mps.smodel.SNodeId.Regular) {
             return ((jetbrains.mps.smodel.SNodeId.Regular) id).getId();
@@ -20,9 +44,74 @@ public class NodeUtils {
         if(id instanceof jetbrains.mps.smodel.SModelId.RegularSModelId) {
             return ((jetbrains.mps.smodel.SModelId.RegularSModelId) id).getId().toString();
         } else if(id instanceof jetbrains.mps.smodel.SModelId.ForeignSModelId) {
-            return "Foreign_" + ((jetbrains.mps.smodel.SModelId.ForeignSModelId) id).getId();
+            return FOREIGN_MODEL_PREFIX + ((jetbrains.mps.smodel.SModelId.ForeignSModelId) id).getId();
         } else {
-            return "String_" + id.toString();
+            return STRING_MODEL_PREFIX + id.toString();
         }
     }
+    /**
+     * Node ids are unique within a model only, nodes are identified by a key combining model and node id.
+     * A SReferenceProxy standing for a node has the same key as the node.
+     */
+    public static String getNodeKey(SModelId modelId, SNodeId nodeId) {
+        return getModelId(modelId) + "#" + getNodeId(nodeId);
+    }
+    public static String getNodeKey(SModelReference modelReference, SNodeId nodeId) {
+        return getNodeKey(modelReference.getModelId(), nodeId);
+    }
+    /**
+     * Key of a node that is part of a model
+     */
+    public static String getNodeKey(SNode node) {
+        return getNodeKey(node.getModel().getReference(), node.getNodeId());
+    }
+    public static String getPropertyKey(SProperty property) {
+        return PROPERTY_PREFIX + MetaIdHelper.getProperty(property).serialize();
+    }
+
+    /**
+     * Inverse of {@link #getNodeId(SNodeId)}
+     */
+    public static SNodeId toNodeId(Object id) {
+        if (id instanceof Number) {
+            return new jetbrains.mps.smodel.SNodeId.Regular(((Number) id).longValue());
+        }
+        return new jetbrains.mps.smodel.SNodeId.Foreign((String) id);
+    }
+
+    /**
+     * Inverse of {@link #getModelId(SModelId)}
+     */
+    public static SModelId toModelId(Object id) {
+        String value = (String) id;
+        if (value.startsWith(FOREIGN_MODEL_PREFIX)) {
+            return new jetbrains.mps.smodel.SModelId.ForeignSModelId(value.substring(FOREIGN_MODEL_PREFIX.length()));
+        } else if (value.startsWith(STRING_MODEL_PREFIX)) {
+            return PersistenceFacade.getInstance().createModelId(value.substring(STRING_MODEL_PREFIX.length()));
+        }
+        return jetbrains.mps.smodel.SModelId.regular(UUID.fromString(value));
+    }
+
+    /**
+     * @return the property stored with the given node attribute key, or null if the key is not a property
+     */
+    public static SProperty toProperty(String key) {
+        if (!key.startsWith(PROPERTY_PREFIX)) {
+            return null;
+        }
+        String id = key.substring(PROPERTY_PREFIX.length());
+        return MetaAdapterFactory.getProperty(SPropertyId.deserialize(id), id);
+    }
+
+    public static SConcept toConcept(String id) {
+        return MetaAdapterFactory.getConcept(SConceptId.deserialize(id), id);
+    }
+
+    public static SContainmentLink toContainmentLink(String id) {
+        return MetaAdapterFactory.getContainmentLink(SContainmentLinkId.deserialize(id), id);
+    }
+
+    public static SReferenceLink toReferenceLink(String id) {
+        return MetaAdapterFactory.getReferenceLink(SReferenceLinkId.deserialize(id), id);
+    }
 }
@@ -0,0 +1,115 @@
+package com.mbeddr.persistence.neo4j;
+
+import jetbrains.mps.util.io.ModelInputStream;
+import jetbrains.mps.util.io.ModelOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * All properties and user objects of a node encoded into the single {@link #KEY} attribute, so reading a node means
+ * decoding one value instead of a map with a key per property. Enabled with {@code neo4j.persistence.packProperties},
+ * the properties are written as separate keys as well with {@code neo4j.persistence.queryableProperties}. Whenever
+ * the packed form is there, it's the one that is read.
+ * <p>
+ * The encoding follows {@link BareNodeWriter}: properties are registry ids with their values, user objects are a
+ * separate section, so the properties can be read without them. Bolt of Neo4j 3.0 can't transfer byte arrays, the
+ * bytes are stored Base64 encoded.
+ */
+public final class PackedProperties {
+    public static final String KEY = "Properties";
+    public static final boolean ENABLED = Boolean.getBoolean("neo4j.persistence.packProperties");
+    public static final boolean QUERYABLE = Boolean.getBoolean("neo4j.persistence.queryableProperties");
+
+    private static final byte VERSION = 1;
+
+    private PackedProperties() {
+    }
+
+    /**
+     * Known user objects of the node, taken when the node is written
+     * @return null if there are none
+     */
+    @Nullable
+    public static byte[] packUserObjects(@NotNull SNode node, @NotNull BareNodeWriter writer) {
+        try {
+            ByteArrayOutputStream userObjects = new ByteArrayOutputStream();
+            try (ModelOutputStream os = new ModelOutputStream(userObjects)) {
+                writer.writeUserObjects(os, node);
+            }
+            // no user objects is an empty list, two bytes
+            return userObjects.size() > 2 ? userObjects.toByteArray() : null;
+        } catch (IOException e) {
+            // in memory streams
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param userObjects as taken by {@link #packUserObjects(SNode, BareNodeWriter)}
+     */
+    public static String pack(@NotNull SProperty[] properties, @NotNull String[] values, @Nullable byte[] userObjects, @NotNull MetaRegistry registry) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ModelOutputStream os = new ModelOutputStream(bytes)) {
+                os.writeByte(VERSION);
+                os.writeShort(properties.length);
+                for (int i = 0; i < properties.length; i++) {
+                    os.writeInt(registry.getPropertyId(properties[i]));
+                    os.writeString(values[i]);
+                }
+                os.writeInt(userObjects == null ? 0 : userObjects.length);
+                if (userObjects != null) {
+                    os.write(userObjects);
+                }
+            }
+            return Base64.getEncoder().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            // in memory streams
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decodes the properties into the lists
+     * @return the still encoded user objects, null if there are none
+     */
+    @Nullable
+    public static byte[] unpack(@NotNull String packed, @NotNull MetaRegistry registry, @NotNull List<SProperty> properties, @NotNull List<String> values) {
+        try (ModelInputStream is = new ModelInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(packed)))) {
+            byte version = is.readByte();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unknown version of packed properties " + version);
+            }
+            for (int count = is.readShort(); count > 0; count--) {
+                properties.add(registry.toProperty(is.readInt()));
+                values.add(is.readString());
+            }
+            int userObjectsSize = is.readInt();
+            if (userObjectsSize == 0) {
+                return null;
+            }
+            byte[] userObjects = new byte[userObjectsSize];
+            is.readFully(userObjects);
+            return userObjects;
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt packed properties", e);
+        }
+    }
+
+    public static void readUserObjects(@NotNull SModelReference modelReference, @NotNull byte[] userObjects, @NotNull SNode node) {
+        try (ModelInputStream is = new ModelInputStream(new ByteArrayInputStream(userObjects))) {
+            new BareNodeReader(modelReference, is).readUserObjects(node);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt packed user objects", e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.neo4j.driver.v1.Statement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Replaces REFERENCE relations to {@code SReferenceProxy} nodes standing for nodes of the model by relations to the
+ * nodes themselves, once they are in the database. Proxies nothing points to anymore are deleted.
+ */
+public class PromoteProxies implements CypherStatement {
+    private static final String PROMOTE_PROXY =
+            "MATCH (n:SNode) WHERE n.Key = p.Key " +
+            "MATCH (s:SNode)-[r:REFERENCE]->(p) " +
+            "CREATE (s)-[:REFERENCE {Id : r.Id}]->(n) DELETE r " +
+            "WITH DISTINCT p WHERE NOT ()-[:REFERENCE]->(p) DELETE p";
+    private static final String PROMOTE =
+            "MATCH (p:SReferenceProxy) WHERE p.ModelId = {modelId} " + PROMOTE_PROXY;
+    private static final String PROMOTE_IDS =
+            "UNWIND {ids} AS id MATCH (p:SReferenceProxy) WHERE id(p) = id " + PROMOTE_PROXY;
+    private static final String QUERY_PROXIES =
+            "MATCH (p:SReferenceProxy) WHERE p.ModelId = {modelId} RETURN id(p) AS id";
+
+    private final Object modelId;
+
+    public PromoteProxies(Object modelId) {
+        this.modelId = modelId;
+    }
+
+    /**
+     * Same as the statement, for saves writing the whole model: the proxies are promoted in chunks of bounded size,
+     * each in a transaction of its own, so that the size of a transaction doesn't depend on the number of references
+     * other models have to the model.
+     */
+    public static void inChunks(BoltCypherExecutor executor, Object modelId, int chunkSize) {
+        List<Object> ids;
+        try (Stream<Object> rows = executor.stream(new Statement(QUERY_PROXIES, Collections.singletonMap("modelId", modelId)), r -> r.get(0).asObject())) {
+            ids = rows.collect(Collectors.toList());
+        }
+        for (int start = 0; start < ids.size(); start += chunkSize) {
+            List<Object> chunk = new ArrayList<>(ids.subList(start, Math.min(start + chunkSize, ids.size())));
+            executor.excecWithRetry(Collections.singletonList(new Statement(PROMOTE_IDS, Collections.singletonMap("ids", chunk))));
+        }
+    }
+
+    @Override
+    public boolean needsNodesToBeCreated() {
+        return true;
+    }
+
+    @Override
+    public Statement toStatement() {
+        return new Statement(PROMOTE, Collections.singletonMap("modelId", modelId));
+    }
+}
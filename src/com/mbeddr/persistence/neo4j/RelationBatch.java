@@ -0,0 +1,83 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.neo4j.driver.v1.Statement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Creates a batch of relationships of the same kind with a single UNWIND statement.
+ * Relationship data is kept in parallel columns (source key, target key, link id, target model id and position
+ * among the siblings) rather than in a map per row. External references have the node id of the target instead
+ * of its key, the key of the target or its proxy is computed from model and node id.
+ */
+public class RelationBatch implements CypherStatement {
+
+    public enum Kind {
+        ROOT("MATCH (a:SModel) WHERE a.Id = source MATCH (b:SNode) WHERE b.Key = target " +
+                "CREATE (a)-[r:ROOT {Index : index}]->(b)"),
+        CONTAINMENT("MATCH (a:SNode) WHERE a.Key = source MATCH (b:SNode) WHERE b.Key = target " +
+                "CREATE (a)-[r:CONTAINMENT {Id : link, Index : index}]->(b)"),
+        REFERENCE("MATCH (a:SNode) WHERE a.Key = source MATCH (b:SNode) WHERE b.Key = target " +
+                "CREATE (a)-[r:REFERENCE {Id : link}]->(b)"),
+        // the target node itself if its model is in the database as well, a proxy standing for it otherwise
+        EXTERNAL_REFERENCE("MATCH (a:SNode) WHERE a.Key = source " +
+                "OPTIONAL MATCH (b:SNode) WHERE b.Key = " + NodeUtils.NODE_KEY + " " +
+                "FOREACH (x IN CASE WHEN b IS NULL THEN [] ELSE [1] END | CREATE (a)-[:REFERENCE {Id : link}]->(b)) " +
+                "FOREACH (x IN CASE WHEN b IS NULL THEN [1] ELSE [] END | " +
+                "MERGE (proxy:SReferenceProxy {Key : " + NodeUtils.NODE_KEY + "}) ON CREATE SET proxy.ModelId = model, proxy.NodeId = target " +
+                "CREATE (a)-[:REFERENCE {Id : link}]->(proxy))");
+
+        private final String query;
+
+        Kind(String body) {
+            this.query = "UNWIND range(0, size({sources}) - 1) AS i " +
+                    "WITH {sources}[i] AS source, {targets}[i] AS target, {links}[i] AS link, {models}[i] AS model, {indexes}[i] AS index " +
+                    body;
+        }
+    }
+
+    private final Kind kind;
+    private final List<Object> sources = new ArrayList<>();
+    private final List<Object> targets = new ArrayList<>();
+    private final List<Object> links = new ArrayList<>();
+    private final List<Object> models = new ArrayList<>();
+    private final List<Object> indexes = new ArrayList<>();
+
+    public RelationBatch(Kind kind) {
+        this.kind = kind;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public void add(Object source, Object target, Object link, Object model, Object index) {
+        sources.add(source);
+        targets.add(target);
+        links.add(link);
+        models.add(model);
+        indexes.add(index);
+    }
+
+    public int size() {
+        return sources.size();
+    }
+
+    @Override
+    public boolean needsNodesToBeCreated() {
+        return true;
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("sources", sources);
+        values.put("targets", targets);
+        values.put("links", links);
+        values.put("models", models);
+        values.put("indexes", indexes);
+        return new Statement(kind.query, values);
+    }
+}
@@ -0,0 +1,68 @@
+package com.mbeddr.persistence.neo4j;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Replaces individual {@link BatchableRelation} statements with {@link RelationBatch}es, one per relationship kind.
+ * Any other statement is passed through unchanged.
+ * Statements can be added one at a time, a batch is handed to the consumer as soon as it is full.
+ */
+public class RelationBatchWriter {
+    private final int batchSize;
+    private final Consumer<? super CypherStatement> out;
+    private final Map<RelationBatch.Kind, RelationBatch> open = new EnumMap<>(RelationBatch.Kind.class);
+
+    public RelationBatchWriter(int batchSize, Consumer<? super CypherStatement> out) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+        this.out = out;
+    }
+
+    /**
+     * Batches the given statements in one go and returns the result in order.
+     */
+    public static List<CypherStatement> write(int batchSize, Iterable<? extends CypherStatement> statements) {
+        ArrayList<CypherStatement> result = new ArrayList<>();
+        RelationBatchWriter writer = new RelationBatchWriter(batchSize, result::add);
+        for (CypherStatement statement : statements) {
+            writer.add(statement);
+        }
+        writer.flush();
+        return result;
+    }
+
+    public void add(CypherStatement statement) {
+        if (!(statement instanceof BatchableRelation)) {
+            out.accept(statement);
+            return;
+        }
+        BatchableRelation relation = (BatchableRelation) statement;
+        RelationBatch.Kind kind = relation.getBatchKind();
+        RelationBatch batch = open.get(kind);
+        if (batch == null) {
+            batch = new RelationBatch(kind);
+            open.put(kind, batch);
+        }
+        relation.addTo(batch);
+        if (batch.size() >= batchSize) {
+            out.accept(batch);
+            open.remove(kind);
+        }
+    }
+
+    /**
+     * Hands the batches that are not full yet to the consumer.
+     */
+    public void flush() {
+        for (RelationBatch batch : open.values()) {
+            out.accept(batch);
+        }
+        open.clear();
+    }
+}
@@ -0,0 +1,11 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.neo4j.driver.v1.Record;
+
+/**
+ * Turns a result record into a value, reading the columns by position rather than converting the record into a map.
+ */
+@FunctionalInterface
+public interface RowDecoder<T> {
+    T decode(Record record);
+}
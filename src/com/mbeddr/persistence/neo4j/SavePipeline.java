@@ -0,0 +1,168 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-behind queue for model saves. Writes of the same model are executed in the order they were submitted,
+ * writes of different models run in parallel. Writes of a model that are still waiting to be executed are
+ * coalesced into one batch, a write that replaces the whole model drops the waiting ones.
+ * The number of waiting batches is bounded, {@link #submit} blocks if the queue is full.
+ */
+public class SavePipeline implements AutoCloseable {
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_CAPACITY = 64;
+
+    public interface Task {
+        void run(@NotNull BoltCypherExecutor executor) throws Exception;
+    }
+
+    private final BoltCypherExecutor executor;
+    private final ExecutorService workers;
+    private final Semaphore capacity;
+    private final Map<Object, ModelQueue> queues = new HashMap<>();
+    // models whose last save failed, guarded by queues
+    private final Set<Object> failed = new HashSet<>();
+
+    public SavePipeline(@NotNull BoltCypherExecutor executor, int parallelism, int capacity) {
+        this.executor = executor;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "Neo4j save " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.capacity = new Semaphore(capacity);
+    }
+
+    @NotNull
+    public BoltCypherExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param replacesPending the task writes the whole model, waiting tasks of the same model don't have to run
+     * @return future completed once the task (and everything submitted before for the same model) is committed
+     */
+    public CompletableFuture<Void> submit(@NotNull Object modelId, boolean replacesPending, @NotNull Task task) {
+        capacity.acquireUninterruptibly();
+        synchronized (queues) {
+            ModelQueue queue = queues.computeIfAbsent(modelId, ModelQueue::new);
+            if (queue.waiting != null) {
+                capacity.release();
+                if (replacesPending) {
+                    queue.waiting.tasks.clear();
+                }
+                queue.waiting.tasks.add(task);
+                return queue.waiting.future;
+            }
+            Batch batch = new Batch();
+            batch.tasks.add(task);
+            queue.waiting = batch;
+            queue.last = batch.future;
+            if (!queue.running) {
+                queue.running = true;
+                workers.execute(() -> drain(queue));
+            }
+            return batch.future;
+        }
+    }
+
+    /**
+     * Wait until everything submitted for the model so far is written, e.g. before reading the model.
+     * @return false if the last save of the model failed (or waiting was interrupted), what the database holds for
+     * it may not match the model then
+     */
+    public boolean flush(@NotNull Object modelId) {
+        CompletableFuture<Void> last;
+        synchronized (queues) {
+            ModelQueue queue = queues.get(modelId);
+            last = queue == null ? null : queue.last;
+        }
+        if (last != null) {
+            try {
+                last.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                // reported to whoever submitted the save
+            }
+        }
+        synchronized (queues) {
+            return !failed.contains(modelId);
+        }
+    }
+
+    private void drain(ModelQueue queue) {
+        while (true) {
+            Batch batch;
+            synchronized (queues) {
+                batch = queue.waiting;
+                if (batch == null) {
+                    queue.running = false;
+                    queues.remove(queue.modelId);
+                    return;
+                }
+                queue.waiting = null;
+                capacity.release();
+            }
+            try {
+                for (Task task : batch.tasks) {
+                    task.run(executor);
+                }
+                synchronized (queues) {
+                    failed.remove(queue.modelId);
+                }
+                batch.future.complete(null);
+            } catch (Throwable t) {
+                synchronized (queues) {
+                    failed.add(queue.modelId);
+                }
+                batch.future.completeExceptionally(t);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting work and waits for the queued saves to be written.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class ModelQueue {
+        private final Object modelId;
+        private Batch waiting;
+        private CompletableFuture<Void> last;
+        private boolean running;
+
+        private ModelQueue(Object modelId) {
+            this.modelId = modelId;
+        }
+    }
+
+    private static final class Batch {
+        private final List<Task> tasks = new ArrayList<>();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,170 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.neo4j.driver.v1.Statement;
+import org.neo4j.driver.v1.exceptions.ClientException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Creates the constraints and indexes the persistence relies on. The version of the schema is recorded on a
+ * {@code Schema} node, only the steps the database hasn't seen yet are run, and only once per executor.
+ * <p>
+ * Schema changes can't be mixed with data changes in one transaction, so every step runs on its own. Data written
+ * by earlier versions is migrated after the steps of a version, in chunks of bounded size like {@link ModelCleanup}
+ * deletes, so the size of a transaction doesn't depend on the size of the database.
+ */
+public final class SchemaManager {
+    private static final int CHUNK_SIZE = ModelCleanup.DEFAULT_CHUNK_SIZE;
+
+    private static final String[][] VERSIONS = {
+            // 1: nodes are identified by model and node id
+            {
+                    "CREATE CONSTRAINT ON (m:SModel) ASSERT m.Id IS UNIQUE",
+                    "CREATE CONSTRAINT ON (n:SNode) ASSERT n.Key IS UNIQUE",
+                    "CREATE CONSTRAINT ON (p:SReferenceProxy) ASSERT p.Key IS UNIQUE",
+                    "CREATE INDEX ON :SNode(ModelId)",
+                    "CREATE INDEX ON :SReferenceProxy(ModelId)",
+            },
+            // 2: concepts and properties are kept in the MetaRegistry
+            {
+                    "CREATE CONSTRAINT ON (c:MetaConcept) ASSERT c.Name IS UNIQUE",
+                    "CREATE CONSTRAINT ON (p:MetaProperty) ASSERT p.Name IS UNIQUE",
+                    "MERGE (r:MetaRegistry) ON CREATE SET r.Next = 0",
+            },
+            // 3: instances of a concept are found by its id
+            {
+                    "CREATE INDEX ON :SNode(ConceptId)",
+            },
+    };
+    // steps of earlier versions that fail if there's nothing to undo
+    private static final List<String> OPTIONAL = Collections.singletonList(
+            "DROP CONSTRAINT ON (n:SNode) ASSERT n.NodeId IS UNIQUE");
+
+    public static final int VERSION = VERSIONS.length;
+
+    private interface Migration {
+        void run(BoltCypherExecutor executor);
+    }
+
+    // run after the steps of the version with the same index, null if there is nothing to migrate
+    private static final Migration[] MIGRATIONS = {
+            SchemaManager::addNodeKeys,
+            null,
+            SchemaManager::addConceptIds,
+    };
+
+    private static final String QUERY_MODELS = "MATCH (m:SModel) RETURN m.Id";
+    // nodes written before they had a key
+    private static final String QUERY_NODES_WITHOUT_KEY =
+            "MATCH (m:SModel)-[:ROOT]->(:SNode)-[:CONTAINMENT*0..]->(n:SNode) WHERE m.Id = {modelId} AND n.Key IS NULL " +
+            "RETURN id(n)";
+    private static final String LEGACY_CONCEPT = "n.ConceptId IS NULL AND n." + MetaRegistry.LEGACY_CONCEPT + " IS NOT NULL ";
+    private static final String QUERY_LEGACY_CONCEPTS =
+            "MATCH (n:SNode) WHERE " + LEGACY_CONCEPT + "RETURN DISTINCT n." + MetaRegistry.LEGACY_CONCEPT;
+    private static final String QUERY_NODES_WITH_LEGACY_CONCEPT = "MATCH (n:SNode) WHERE " + LEGACY_CONCEPT + "RETURN id(n)";
+    private static final String SET_CONCEPT_IDS =
+            "UNWIND {ids} AS id MATCH (n:SNode) WHERE id(n) = id MATCH (c:MetaConcept) WHERE c.Name = n." + MetaRegistry.LEGACY_CONCEPT + " " +
+            "SET n.ConceptId = c.Id REMOVE n." + MetaRegistry.LEGACY_CONCEPT;
+    private static final String SET_NODE_KEYS =
+            "UNWIND {ids} AS id MATCH (n:SNode) WHERE id(n) = id SET n.ModelId = {modelId}, n.Key = {modelId} + '#' + n.NodeId";
+
+    private static final String QUERY_VERSION = "MATCH (s:Schema) RETURN s.Version";
+    private static final String SET_VERSION = "MERGE (s:Schema) SET s.Version = {version}";
+
+    private static final Set<BoltCypherExecutor> upToDate = ConcurrentHashMap.newKeySet();
+
+    private SchemaManager() {
+    }
+
+    /**
+     * Brings the schema of the database up to {@link #VERSION}, returns right away if this was done before.
+     */
+    public static void ensureSchema(BoltCypherExecutor executor) {
+        if (upToDate.contains(executor)) {
+            return;
+        }
+        synchronized (SchemaManager.class) {
+            if (upToDate.contains(executor)) {
+                return;
+            }
+            int version = readVersion(executor);
+            if (version < 1) {
+                for (String step : OPTIONAL) {
+                    try {
+                        executor.query(new Statement(step));
+                    } catch (ClientException ignored) {
+                        // nothing to drop
+                    }
+                }
+            }
+            for (int next = version; next < VERSION; next++) {
+                for (String step : VERSIONS[next]) {
+                    executor.query(new Statement(step));
+                }
+                if (MIGRATIONS[next] != null) {
+                    MIGRATIONS[next].run(executor);
+                }
+                executor.query(new Statement(SET_VERSION, Collections.singletonMap("version", next + 1)));
+            }
+            upToDate.add(executor);
+        }
+    }
+
+    /**
+     * Forget the executor, e.g. once it's closed
+     */
+    public static void forget(BoltCypherExecutor executor) {
+        upToDate.remove(executor);
+    }
+
+    private static void addNodeKeys(BoltCypherExecutor executor) {
+        for (Object modelId : collect(executor, new Statement(QUERY_MODELS))) {
+            Map<String, Object> params = Collections.singletonMap("modelId", modelId);
+            inChunks(executor, SET_NODE_KEYS, collect(executor, new Statement(QUERY_NODES_WITHOUT_KEY, params)), params);
+        }
+    }
+
+    /**
+     * Nodes written before the registry get the id of their concept. The registry is locked only while the few
+     * concepts are given ids, not while the nodes are changed.
+     */
+    private static void addConceptIds(BoltCypherExecutor executor) {
+        List<Object> concepts = collect(executor, new Statement(QUERY_LEGACY_CONCEPTS));
+        if (concepts.isEmpty()) {
+            return;
+        }
+        executor.query(MetaRegistry.allocateConcepts(concepts.stream().map(String.class::cast).collect(Collectors.toList())));
+        inChunks(executor, SET_CONCEPT_IDS, collect(executor, new Statement(QUERY_NODES_WITH_LEGACY_CONCEPT)), Collections.emptyMap());
+    }
+
+    private static List<Object> collect(BoltCypherExecutor executor, Statement query) {
+        try (Stream<Object> values = executor.stream(query, r -> r.get(0).asObject())) {
+            return values.collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Runs the query for chunks of the ids, each in a transaction of its own
+     */
+    private static void inChunks(BoltCypherExecutor executor, String query, List<Object> ids, Map<String, Object> params) {
+        for (int start = 0; start < ids.size(); start += CHUNK_SIZE) {
+            HashMap<String, Object> values = new HashMap<>(params);
+            values.put("ids", new ArrayList<>(ids.subList(start, Math.min(start + CHUNK_SIZE, ids.size()))));
+            executor.query(new Statement(query, values));
+        }
+    }
+
+    private static int readVersion(BoltCypherExecutor executor) {
+        try (Stream<Object> versions = executor.stream(new Statement(QUERY_VERSION), r -> r.get(0).asObject())) {
+            return versions.filter(v -> v instanceof Number).mapToInt(v -> ((Number) v).intValue()).max().orElse(0);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.mbeddr.persistence.neo4j;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Query texts for creating nodes, cached by label and attribute keys.
+ * Nodes of the same shape always get the same text, so the server can reuse the plan it compiled for it.
+ */
+public final class StatementTemplates {
+    // shapes follow the concepts of the saved languages, this is only a guard against unbounded growth
+    private static final int MAX_TEMPLATES = Integer.getInteger("neo4j.persistence.maxTemplates", 10000);
+
+    private static final Map<String, String> createNode = new ConcurrentHashMap<>();
+    private static final Map<String, String> createNodeBatch = new ConcurrentHashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private StatementTemplates() {
+    }
+
+    /**
+     * {@code CREATE (e:Label {`key`:{`key`}, ...})} with the keys in sorted order
+     */
+    public static String createNode(String label, Collection<String> keys) {
+        return lookup(createNode, label, keys, sorted -> "CREATE " + pattern(label, sorted, "{`", "`}"));
+    }
+
+    /**
+     * {@code UNWIND {rows} AS row CREATE (e:Label {`key`:row.`key`, ...})} with the keys in sorted order
+     */
+    public static String createNodeBatch(String label, Collection<String> keys) {
+        return lookup(createNodeBatch, label, keys, sorted -> "UNWIND {rows} AS row CREATE " + pattern(label, sorted, "row.`", "`"));
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return share of the requested texts that were already cached, 0 if nothing was requested yet
+     */
+    public static double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public static void resetCounters() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private static String lookup(Map<String, String> cache, String label, Collection<String> keys, Function<SortedSet<String>, String> template) {
+        SortedSet<String> sorted = keys instanceof SortedSet ? (SortedSet<String>) keys : new TreeSet<>(keys);
+        String shape = label + sorted;
+        String text = cache.get(shape);
+        if (text != null) {
+            hits.incrementAndGet();
+            return text;
+        }
+        misses.incrementAndGet();
+        text = template.apply(sorted);
+        if (cache.size() < MAX_TEMPLATES) {
+            String previous = cache.putIfAbsent(shape, text);
+            if (previous != null) {
+                return previous;
+            }
+        }
+        return text;
+    }
+
+    private static String pattern(String label, SortedSet<String> keys, String valuePrefix, String valueSuffix) {
+        StringBuilder builder = new StringBuilder("(e");
+        if (label != null && !label.isEmpty()) {
+            builder.append(":").append(label).append(" ");
+        }
+        builder.append("{ ");
+        boolean first = true;
+        for (String key : keys) {
+            if (!first) {
+                builder.append(",");
+            }
+            builder.append("`").append(key).append("`:").append(valuePrefix).append(key).append(valueSuffix);
+            first = false;
+        }
+        return builder.append("})").toString();
+    }
+}
@@ -0,0 +1,54 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.mps.openapi.model.SModel;
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.neo4j.driver.v1.Statement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes the current position of every child of a node (or every root of a model) to the Index of its
+ * CONTAINMENT (or ROOT) relation, after children were added in between existing ones.
+ */
+public class UpdateChildOrder implements CypherStatement {
+
+    private final String query;
+    private final Object parentId;
+    private final List<Object> childIds = new ArrayList<>();
+
+    private UpdateChildOrder(String query, Object parentId, SModelReference modelReference, Iterable<? extends SNode> children) {
+        this.query = query;
+        this.parentId = parentId;
+        for (SNode child : children) {
+            childIds.add(NodeUtils.getNodeKey(modelReference, child.getNodeId()));
+        }
+    }
+
+    public static UpdateChildOrder children(SNode parent) {
+        return new UpdateChildOrder(
+                "MATCH (p:SNode)-[r:CONTAINMENT]->(n:SNode) WHERE p.Key = {id} AND n.Key = {children}[i] SET r.Index = i",
+                NodeUtils.getNodeKey(parent), parent.getModel().getReference(), parent.getChildren());
+    }
+
+    public static UpdateChildOrder roots(SModelReference modelReference, SModel model) {
+        return new UpdateChildOrder(
+                "MATCH (p:SModel)-[r:ROOT]->(n:SNode) WHERE p.Id = {id} AND n.Key = {children}[i] SET r.Index = i",
+                NodeUtils.getModelId(modelReference.getModelId()), modelReference, model.getRootNodes());
+    }
+
+    @Override
+    public boolean needsNodesToBeCreated() {
+        return true;
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("id", parentId);
+        values.put("children", childIds);
+        return new Statement("UNWIND range(0, size({children}) - 1) AS i " + query, values);
+    }
+}
@@ -0,0 +1,36 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.mps.openapi.model.SModelReference;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.neo4j.driver.v1.Statement;
+
+import java.util.HashMap;
+
+/**
+ * Stores the {@link ModelDigest} of a root after the model was changed.
+ */
+public class UpdateDigest implements CypherStatement {
+
+    private final String query;
+    private final Object id;
+    private final String digest;
+
+    private UpdateDigest(String query, Object id, String digest) {
+        this.query = query;
+        this.id = id;
+        this.digest = digest;
+    }
+
+    public static UpdateDigest root(SModelReference modelReference, SNode root) {
+        return new UpdateDigest("MATCH (n:SNode) WHERE n.Key = {id} SET n." + ModelDigest.PROPERTY + " = {digest}",
+                NodeUtils.getNodeKey(modelReference, root.getNodeId()), ModelDigest.root(root));
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("id", id);
+        values.put("digest", digest);
+        return new Statement(query, values);
+    }
+}
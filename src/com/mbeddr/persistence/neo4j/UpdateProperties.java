@@ -0,0 +1,84 @@
+package com.mbeddr.persistence.neo4j;
+
+import org.jetbrains.mps.openapi.language.SProperty;
+import org.jetbrains.mps.openapi.model.SNode;
+import org.neo4j.driver.v1.Statement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the current values of some properties of an existing node, properties without a value are removed. Only the
+ * keys of the changed properties are written. With {@link PackedProperties} the packed form is written anew.
+ */
+public class UpdateProperties implements DeferredStatement {
+
+    private final String key;
+    // all properties, if they are packed
+    private final NodeContent packed;
+    // the changed properties, unless they are packed only
+    private final NodeContent written;
+    // all properties if they are not packed, in case the node still has a packed form written before
+    private final NodeContent unpacked;
+    private final MetaRegistry registry;
+
+    public UpdateProperties(SNode node, Collection<SProperty> properties, MetaRegistry registry, BareNodeWriter writer) {
+        this.key = NodeUtils.getNodeKey(node);
+        this.registry = registry;
+        Set<SProperty> changed = new LinkedHashSet<>(properties);
+        List<SProperty> all = new ArrayList<>();
+        for (SProperty property : node.getProperties()) {
+            all.add(property);
+        }
+        this.packed = PackedProperties.ENABLED ? NodeContent.of(node, writer) : null;
+        this.written = PackedProperties.ENABLED && !PackedProperties.QUERYABLE ? null : NodeContent.ofProperties(node, changed);
+        this.unpacked = PackedProperties.ENABLED ? null : NodeContent.ofProperties(node, all);
+        writer.noteMeta(null, changed);
+        writer.noteMeta(null, all);
+    }
+
+    @Override
+    public Statement toStatement() {
+        HashMap<String, Object> values = new HashMap<>();
+        values.put("id", key);
+
+        StringBuilder builder = new StringBuilder("MATCH (n:SNode) WHERE n.Key = {id} ");
+        if (packed != null) {
+            builder.append("SET n.").append(PackedProperties.KEY).append(" = {packed}");
+            values.put("packed", packed.pack(registry));
+            if (written == null || written.getProperties().length == 0) {
+                return new Statement(builder.toString(), values);
+            }
+            builder.append(", ");
+        } else {
+            // a packed form written before would hide the new values, the properties it holds are written as keys
+            Map<String, Object> all = new HashMap<>();
+            for (int index = 0; index < unpacked.getProperties().length; index++) {
+                all.put(registry.getPropertyKey(unpacked.getProperties()[index]), unpacked.getValues()[index]);
+            }
+            values.put("all", all);
+            builder.append("FOREACH (x IN CASE WHEN n.").append(PackedProperties.KEY).append(" IS NULL THEN [] ELSE [1] END | ")
+                    .append("SET n += {all}, n.").append(PackedProperties.KEY).append(" = null) ");
+            if (written.getProperties().length == 0) {
+                return new Statement(builder.toString(), values);
+            }
+            builder.append("SET ");
+        }
+        SProperty[] properties = written.getProperties();
+        for (int index = 0; index < properties.length; index++) {
+            if (index > 0) {
+                builder.append(", ");
+            }
+            builder.append("n.").append(registry.getPropertyKey(properties[index])).append(" = {p").append(index).append("}");
+            // nodes written before the registry keep the old key otherwise
+            builder.append(", n.`").append(NodeUtils.getPropertyKey(properties[index])).append("` = null");
+            values.put("p" + index, written.getValues()[index]);
+        }
+        return new Statement(builder.toString(), values);
+    }
+}